@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Runs a query over in-memory data (see PlanExecutor) with a plan that is corrected as
+ * the scan goes on, for when the selectivities the plan was chosen with may be wrong.
+ * The records are scanned in blocks. Within each block, every SAMPLE_STRIDE-th record
+ * is tested against every selection condition, whatever the plan, so the observed
+ * selectivity of each condition is known from an unbiased sample of the records
+ * scanned so far.
+ * </p>
+ * <p>
+ * After each block, if some observed selectivity has moved more than the tolerance away
+ * from the selectivities the current plan was chosen with, the query is optimized again
+ * with the observed selectivities. The current plan is then costed with the observed
+ * selectivities too, with the same cost formulas as the optimizer, and the rest of the
+ * scan switches to the new plan if it is cheaper. The estimated saving of a switch is
+ * the difference in cost per record times the number of records left to scan.
+ * </p>
+ * <p>
+ * An AdaptiveExecutor keeps the state of the scan it last ran, so each instance should
+ * only be used by one thread at a time.
+ * </p>
+ */
+public class AdaptiveExecutor {
+    /** records scanned between checks of the observed selectivities */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    /** change in selectivity that makes us check whether the plan is still the best */
+    public static final float DEFAULT_TOLERANCE = 0.1f;
+
+    /** one in this many records is tested against every condition */
+    private static final int SAMPLE_STRIDE = 16;
+
+    private final Float[] estimates;
+    private final CostModel model;
+    private final int blockSize;
+    private final float tolerance;
+
+    /** selectivities the current plan was chosen (or last confirmed) with */
+    private Float[] planned;
+    private QueryPlan plan;
+    private Float[] observed;
+    private int switches;
+    private double estimatedSavings;
+
+    /**
+     * @param selectivities estimated selectivity of each selection condition
+     * @param model costs of the machine we are optimizing for
+     */
+    public AdaptiveExecutor(Float[] selectivities, CostModel model) {
+        this(selectivities, model, DEFAULT_BLOCK_SIZE, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param selectivities estimated selectivity of each selection condition
+     * @param model costs of the machine we are optimizing for
+     * @param blockSize records scanned between checks of the observed selectivities
+     * @param tolerance change in any selectivity that makes us re-optimize
+     */
+    public AdaptiveExecutor(Float[] selectivities, CostModel model, int blockSize, float tolerance) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        this.estimates = selectivities.clone();
+        this.model = model;
+        this.blockSize = blockSize;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Evaluates the query for every record, switching plans between blocks if the
+     * observed selectivities call for it.
+     *
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(byte[][] tables, int[][] offsets) {
+        int k = estimates.length;
+        planned = estimates.clone();
+        plan = optimize(planned);
+        observed = null;
+        switches = 0;
+        estimatedSavings = 0;
+
+        PlanExecutor executor = new PlanExecutor(plan);
+        int records = executor.checkData(tables, offsets);
+        int[] answer = new int[records];
+        int j = 0;
+        long[] passed = new long[k];
+        long samples = 0;
+        for (int from = 0; from < records; from += blockSize) {
+            int to = (int) Math.min((long) from + blockSize, records);
+            j = executor.execute(tables, offsets, from, to, answer, j);
+
+            /* sample the block */
+            for (int i = from; i < to; i += SAMPLE_STRIDE) {
+                for (int n = 0; n < k; n++) {
+                    passed[n] += tables[n][offsets[n][i]];
+                }
+                samples++;
+            }
+            observed = new Float[k];
+            boolean drifted = false;
+            for (int n = 0; n < k; n++) {
+                observed[n] = (float) passed[n] / samples;
+                drifted |= Math.abs(observed[n] - planned[n]) > tolerance;
+            }
+
+            /* re-plan the rest of the scan */
+            if (drifted && to < records) {
+                QueryPlan current = reprice(plan, observed);
+                QueryPlan replanned = optimize(observed);
+                if (replanned.cost < current.cost) {
+                    estimatedSavings += (double) (current.cost - replanned.cost) * (records - to);
+                    switches++;
+                    plan = replanned;
+                    executor = new PlanExecutor(plan);
+                }
+                planned = observed;
+            }
+        }
+        return Arrays.copyOf(answer, j);
+    }
+
+    /**
+     * @return the plan the last scan ended with
+     */
+    public QueryPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return selectivities observed in the last scan, or null if it scanned no records
+     */
+    public Float[] getObservedSelectivities() {
+        return observed;
+    }
+
+    /**
+     * @return number of times the last scan switched plans
+     */
+    public int getSwitches() {
+        return switches;
+    }
+
+    /**
+     * @return estimated cost saved by the switches of the last scan, in the units of the
+     * cost model, over all of the records scanned after each switch
+     */
+    public double getEstimatedSavings() {
+        return estimatedSavings;
+    }
+
+    /**
+     * @return the best plan for the conditions with the given selectivities
+     */
+    private QueryPlan optimize(Float[] selectivities) {
+        QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+        o.optimize();
+        return o.getPlan();
+    }
+
+    /**
+     * @return a copy of the plan tree, costed as if the conditions had the given
+     * selectivities
+     */
+    private QueryPlan reprice(QueryPlan plan, Float[] selectivities) {
+        QueryPlan repriced = new QueryPlan(plan.bitmask, selectivities, model);
+        if (plan.left != null && plan.right != null) {
+            QueryPlan left = reprice(plan.left, selectivities);
+            QueryPlan right = reprice(plan.right, selectivities);
+            repriced.setChildren(left, right);
+            repriced.cost = QueryOptimizerUtils.combinedCost(left, right);
+        }
+        return repriced;
+    }
+}
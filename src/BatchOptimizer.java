@@ -0,0 +1,128 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Optimizes a batch of independent queries on a pool of worker threads. Each query gets
+ * its own QueryOptimizer (and so its own search space), and all of the state shared
+ * between workers (the CostModel and the input selectivities) is immutable, so the
+ * queries can be optimized in any order and on any thread.
+ * </p>
+ * <p>
+ * The batch is split recursively on a ForkJoinPool, so workers that draw cheap queries
+ * steal work from the ones stuck on expensive (high k) queries. The formatted results are
+ * always returned in the order of the input queries.
+ * </p>
+ */
+public class BatchOptimizer {
+    /** each worker is handed roughly this many chunks of the batch, to even out query sizes */
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads number of worker threads to optimize queries on
+     */
+    public BatchOptimizer(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Optimizes every query in the batch and returns the formatted statistics for each
+     * of them, in the same order as the input.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @return formatted statistics for each query, in input order
+     */
+    public String[] optimize(List<Float[]> queries, CostModel model) {
+        return optimize(queries, model, null);
+    }
+
+    /**
+     * Optimizes every query in the batch, checking the cache first, and returns the
+     * formatted statistics for each of them, in the same order as the input.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans shared by the workers, or null
+     * @return formatted statistics for each query, in input order
+     */
+    public String[] optimize(List<Float[]> queries, CostModel model, PlanCache cache) {
+        return optimize(queries, model, cache, QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS);
+    }
+
+    /**
+     * Optimizes every query in the batch, checking the cache first and searching
+     * exhaustively only for queries with at most maxExhaustiveTerms selection conditions,
+     * and returns the formatted statistics for each of them, in the same order as the input.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans shared by the workers, or null
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
+     * @return formatted statistics for each query, in input order
+     */
+    public String[] optimize(List<Float[]> queries, CostModel model, PlanCache cache, int maxExhaustiveTerms) {
+        QueryOptimizer[] optimizers = QueryOptimizer.fromList(queries, model, cache, maxExhaustiveTerms);
+        String[] statistics = new String[optimizers.length];
+        int threshold = Math.max(1, optimizers.length / (pool.getParallelism() * CHUNKS_PER_THREAD));
+        pool.invoke(new OptimizeRange(optimizers, statistics, 0, optimizers.length, threshold));
+        return statistics;
+    }
+
+    /**
+     * Stops the worker threads once the batches in progress have finished.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Optimizes the queries in [from, to), splitting the range in half until it is small
+     * enough to be worth optimizing on a single thread.
+     */
+    private static class OptimizeRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final QueryOptimizer[] optimizers;
+        private final String[] statistics;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        OptimizeRange(QueryOptimizer[] optimizers, String[] statistics, int from, int to, int threshold) {
+            this.optimizers = optimizers;
+            this.statistics = statistics;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    optimizers[i].optimize();
+                    statistics[i] = optimizers[i].getFormattedStatistics();
+                    /* release the search space as soon as we are done with it */
+                    optimizers[i] = null;
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new OptimizeRange(optimizers, statistics, from, mid, threshold),
+                        new OptimizeRange(optimizers, statistics, mid, to, threshold));
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Boolean combination of selection conditions, such as (1 & 2) | 3, where n stands for
+ * the selection condition f_n (t_n[o_n[i]] in the generated code). As in C, & binds more
+ * tightly than |; && and || are accepted as synonyms of & and |, since which of them is
+ * used is for the optimizer to decide.
+ * </p>
+ * <p>
+ * Nested operations with the same operator are flattened, so 1 & (2 & 3) is a single AND
+ * of three conditions, and the operands of an operation are kept in the order of their
+ * lowest condition. Each condition may appear only once, because the cost model assumes
+ * that the outcomes of the conditions are independent.
+ * </p>
+ */
+final class BooleanExpression {
+    static final int ATOM = 0;
+    static final int AND = 1;
+    static final int OR = 2;
+
+    final int operator;
+    /** index of the condition (from 0), for atoms */
+    final int condition;
+    /** operands of an AND or OR, at least two of them */
+    final BooleanExpression[] operands;
+    /** bitmask of the conditions in the expression */
+    final long bitmask;
+
+    private BooleanExpression(int operator, int condition, BooleanExpression[] operands, long bitmask) {
+        this.operator = operator;
+        this.condition = condition;
+        this.operands = operands;
+        this.bitmask = bitmask;
+    }
+
+    /**
+     * @param condition index of the condition (from 0)
+     * @return the expression that is just the condition
+     */
+    static BooleanExpression atom(int condition) {
+        return new BooleanExpression(ATOM, condition, null, 1L << condition);
+    }
+
+    /**
+     * @param k number of selection conditions
+     * @return the AND of all of the conditions, i.e. the query Algorithm 4.11 optimizes
+     */
+    static BooleanExpression conjunction(int k) {
+        List<BooleanExpression> operands = new ArrayList<BooleanExpression>();
+        for (int i = 0; i < k; i++) {
+            operands.add(atom(i));
+        }
+        return of(AND, operands);
+    }
+
+    /**
+     * @param operator AND or OR
+     * @param operands expressions over disjoint sets of conditions
+     * @return the operation, flattened, or the only operand if there is just one
+     */
+    static BooleanExpression of(int operator, List<BooleanExpression> operands) {
+        List<BooleanExpression> flat = new ArrayList<BooleanExpression>();
+        long bitmask = 0;
+        for (BooleanExpression operand : operands) {
+            if ((bitmask & operand.bitmask) != 0) {
+                throw new IllegalArgumentException("condition "
+                        + (Long.numberOfTrailingZeros(bitmask & operand.bitmask) + 1) + " is used more than once");
+            }
+            bitmask |= operand.bitmask;
+            if (operand.operator == operator) {
+                flat.addAll(Arrays.asList(operand.operands));
+            } else {
+                flat.add(operand);
+            }
+        }
+        if (flat.size() == 1) {
+            return flat.get(0);
+        }
+        BooleanExpression[] sorted = flat.toArray(new BooleanExpression[flat.size()]);
+        Arrays.sort(sorted, new Comparator<BooleanExpression>() {
+            @Override
+            public int compare(BooleanExpression e1, BooleanExpression e2) {
+                return Long.numberOfTrailingZeros(e1.bitmask) - Long.numberOfTrailingZeros(e2.bitmask);
+            }
+        });
+        return new BooleanExpression(operator, -1, sorted, bitmask);
+    }
+
+    /**
+     * @param text expression over the conditions 1 to k
+     * @param k number of selection conditions
+     * @return the parsed expression
+     * @throws IllegalArgumentException if the text is not a valid expression over the
+     * conditions
+     */
+    static BooleanExpression parse(String text, int k) {
+        Parser parser = new Parser(text, k);
+        BooleanExpression expression = parser.or();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error();
+        }
+        return expression;
+    }
+
+    /**
+     * @param selectivities array of selectivity values of the selection conditions
+     * @return probability that the expression holds, for independent conditions
+     */
+    float selectivity(Float[] selectivities) {
+        if (operator == ATOM) {
+            return selectivities[condition];
+        }
+        float p = 1;
+        for (BooleanExpression operand : operands) {
+            /* an OR fails only if every operand fails */
+            p *= operator == AND ? operand.selectivity(selectivities) : 1 - operand.selectivity(selectivities);
+        }
+        return operator == AND ? p : 1 - p;
+    }
+
+    @Override
+    public String toString() {
+        if (operator == ATOM) {
+            return String.valueOf(condition + 1);
+        }
+        StringBuilder s = new StringBuilder();
+        for (BooleanExpression operand : operands) {
+            if (s.length() > 0) {
+                s.append(operator == AND ? " & " : " | ");
+            }
+            s.append(operand.operator == ATOM ? operand.toString() : "(" + operand + ")");
+        }
+        return s.toString();
+    }
+
+    /**
+     * Recursive descent parser for or := and ('|' and)*, and := factor ('&' factor)*,
+     * factor := condition | '(' or ')'.
+     */
+    private static class Parser {
+        private final String text;
+        private final int k;
+        int position;
+
+        Parser(String text, int k) {
+            this.text = text;
+            this.k = k;
+        }
+
+        BooleanExpression or() {
+            List<BooleanExpression> operands = new ArrayList<BooleanExpression>();
+            operands.add(and());
+            while (operator('|')) {
+                operands.add(and());
+            }
+            return of(OR, operands);
+        }
+
+        BooleanExpression and() {
+            List<BooleanExpression> operands = new ArrayList<BooleanExpression>();
+            operands.add(factor());
+            while (operator('&')) {
+                operands.add(factor());
+            }
+            return of(AND, operands);
+        }
+
+        BooleanExpression factor() {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '(') {
+                position++;
+                BooleanExpression expression = or();
+                skipWhitespace();
+                if (position == text.length() || text.charAt(position) != ')') {
+                    throw error();
+                }
+                position++;
+                return expression;
+            }
+            int start = position;
+            while (position < text.length() && Character.isDigit(text.charAt(position))) {
+                position++;
+            }
+            if (position == start || position - start > 9) {
+                throw error();
+            }
+            int condition = Integer.parseInt(text.substring(start, position));
+            if (condition < 1 || condition > k) {
+                throw new IllegalArgumentException("no selection condition " + condition + " in \"" + text + "\"");
+            }
+            return atom(condition - 1);
+        }
+
+        /**
+         * Consumes the operator c or cc, if it comes next.
+         */
+        boolean operator(char c) {
+            skipWhitespace();
+            if (position == text.length() || text.charAt(position) != c) {
+                return false;
+            }
+            position++;
+            if (position < text.length() && text.charAt(position) == c) {
+                position++;
+            }
+            return true;
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        IllegalArgumentException error() {
+            return new IllegalArgumentException("invalid expression \"" + text + "\" at position " + (position + 1));
+        }
+    }
+}
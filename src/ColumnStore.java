@@ -0,0 +1,224 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Predicate tables and offset arrays (see PlanExecutor) stored on disk, one file per
+ * column, and memory-mapped rather than read onto the Java heap. A store is a directory
+ * holding, for each selection condition f_n, the predicate table t_n as the raw bytes of
+ * the file tn.bin and the offset array o_n as the little-endian ints of on.bin, so
+ * opening a store only maps the files: nothing is parsed or copied, and the pages are
+ * read by the OS as the executors touch them. PlanExecutor and ParallelPlanExecutor
+ * read the mapped columns directly.
+ * </p>
+ * <p>
+ * A single mapping is limited to 2 GB, so a store holds at most MAX_RECORDS records
+ * (each offset array is 4 bytes per record). Mappings are released when the store is
+ * garbage collected.
+ * </p>
+ */
+public class ColumnStore {
+    /** largest number of records whose offset array fits in one mapping */
+    public static final int MAX_RECORDS = Integer.MAX_VALUE / 4;
+
+    final ByteBuffer[] tables;
+    final IntBuffer[] offsets;
+    private final MappedByteBuffer[] mappings;
+    private final int records;
+
+    private ColumnStore(ByteBuffer[] tables, IntBuffer[] offsets, MappedByteBuffer[] mappings, int records) {
+        this.tables = tables;
+        this.offsets = offsets;
+        this.mappings = mappings;
+        this.records = records;
+    }
+
+    /**
+     * Creates an empty store, with every column zero-filled and mapped for writing. The
+     * columns are filled in through getTable(n) and getOffsets(n), and persisted with
+     * force(). The columns of any store that was in the directory before are replaced,
+     * and those beyond the new store's last column deleted, so open finds only the new
+     * columns.
+     *
+     * @param directory directory to create the column files in
+     * @param tableSizes number of entries of the predicate table of each condition
+     * @param records number of records, i.e. entries of each offset array
+     * @return the new store
+     */
+    public static ColumnStore create(File directory, int[] tableSizes, int records) throws IOException {
+        if (records < 0 || records > MAX_RECORDS) {
+            throw new IllegalArgumentException("number of records must be in [0, " + MAX_RECORDS + "]: " + records);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create directory " + directory);
+        }
+        int k = tableSizes.length;
+        MappedByteBuffer[] mappings = new MappedByteBuffer[2 * k];
+        for (int n = 0; n < k; n++) {
+            mappings[2 * n] = map(tableFile(directory, n), FileChannel.MapMode.READ_WRITE, tableSizes[n]);
+            mappings[2 * n + 1] = map(offsetFile(directory, n), FileChannel.MapMode.READ_WRITE, 4L * records);
+        }
+        /* open counts the columns up to the first missing table file */
+        for (int n = k; tableFile(directory, n).exists() || offsetFile(directory, n).exists(); n++) {
+            File[] stale = {tableFile(directory, n), offsetFile(directory, n)};
+            for (File file : stale) {
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("cannot delete " + file);
+                }
+            }
+        }
+        return fromMappings(mappings, records);
+    }
+
+    /**
+     * Writes the columns to a new store.
+     *
+     * @param directory directory to create the column files in
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @return the new store, mapped for writing
+     */
+    public static ColumnStore write(File directory, byte[][] tables, int[][] offsets) throws IOException {
+        if (offsets.length != tables.length) {
+            throw new IllegalArgumentException(tables.length + " offset arrays expected, " + offsets.length + " given");
+        }
+        int[] tableSizes = new int[tables.length];
+        for (int n = 0; n < tables.length; n++) {
+            tableSizes[n] = tables[n].length;
+        }
+        int records = tables.length == 0 ? 0 : offsets[0].length;
+        for (int n = 1; n < tables.length; n++) {
+            if (offsets[n].length != records) {
+                throw new IllegalArgumentException("offset array o" + (n + 1) + " has " + offsets[n].length
+                        + " entries instead of " + records);
+            }
+        }
+        ColumnStore store = create(directory, tableSizes, records);
+        for (int n = 0; n < tables.length; n++) {
+            /* duplicates, so the positions of the store's buffers stay at 0 */
+            store.tables[n].duplicate().put(tables[n]);
+            store.offsets[n].duplicate().put(offsets[n]);
+        }
+        store.force();
+        return store;
+    }
+
+    /**
+     * Maps the columns of an existing store for reading.
+     *
+     * @param directory directory holding the column files
+     * @return the store
+     * @throws IOException if the directory holds no columns, or their sizes do not match
+     */
+    public static ColumnStore open(File directory) throws IOException {
+        int k = 0;
+        while (tableFile(directory, k).isFile()) {
+            k++;
+        }
+        if (k == 0) {
+            throw new IOException("no columns in " + directory);
+        }
+        long bytes = offsetFile(directory, 0).length();
+        if (bytes % 4 != 0 || bytes / 4 > MAX_RECORDS) {
+            throw new IOException("bad size of " + offsetFile(directory, 0) + ": " + bytes + " bytes");
+        }
+        MappedByteBuffer[] mappings = new MappedByteBuffer[2 * k];
+        for (int n = 0; n < k; n++) {
+            File offsetFile = offsetFile(directory, n);
+            if (offsetFile.length() != bytes) {
+                throw new IOException(offsetFile + " has " + offsetFile.length() + " bytes instead of " + bytes);
+            }
+            File tableFile = tableFile(directory, n);
+            mappings[2 * n] = map(tableFile, FileChannel.MapMode.READ_ONLY, tableFile.length());
+            mappings[2 * n + 1] = map(offsetFile, FileChannel.MapMode.READ_ONLY, bytes);
+        }
+        return fromMappings(mappings, (int) (bytes / 4));
+    }
+
+    /**
+     * Writes any changes to the columns through to the disk.
+     */
+    public void force() {
+        for (MappedByteBuffer mapping : mappings) {
+            if (!mapping.isReadOnly()) {
+                mapping.force();
+            }
+        }
+    }
+
+    /**
+     * @return number of selection conditions the store has columns for
+     */
+    public int getConditions() {
+        return tables.length;
+    }
+
+    /**
+     * @return number of records, i.e. entries of each offset array
+     */
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * @param n index of a selection condition (0-based)
+     * @return the mapped predicate table t_n, indexed from 0; the buffer is shared, so
+     * only its absolute get and put methods should be used
+     */
+    public ByteBuffer getTable(int n) {
+        return tables[n];
+    }
+
+    /**
+     * @param n index of a selection condition (0-based)
+     * @return the mapped offset array o_n, indexed by record; the buffer is shared, so
+     * only its absolute get and put methods should be used
+     */
+    public IntBuffer getOffsets(int n) {
+        return offsets[n];
+    }
+
+    private static ColumnStore fromMappings(MappedByteBuffer[] mappings, int records) {
+        int k = mappings.length / 2;
+        ByteBuffer[] tables = new ByteBuffer[k];
+        IntBuffer[] offsets = new IntBuffer[k];
+        for (int n = 0; n < k; n++) {
+            tables[n] = mappings[2 * n];
+            offsets[n] = mappings[2 * n + 1].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        }
+        return new ColumnStore(tables, offsets, mappings, records);
+    }
+
+    /**
+     * Maps the whole file. Unless it is mapped read-only, the file is created, or cleared,
+     * with the given size.
+     */
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY) {
+                /* truncate first, so that a new column is all zeros */
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            /* the mapping stays valid after the file is closed */
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File tableFile(File directory, int n) {
+        return new File(directory, "t" + (n + 1) + ".bin");
+    }
+
+    private static File offsetFile(File directory, int n) {
+        return new File(directory, "o" + (n + 1) + ".bin");
+    }
+}
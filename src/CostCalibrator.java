@@ -0,0 +1,285 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * <p>
+ * Derives the parameters of the cost model (see CostModel) from microbenchmarks run on
+ * the local machine, and writes them out as a config file the optimizer can load. Like
+ * template/branch_mispred.c, every benchmark is a loop over the records of predicate
+ * tables t_n (3000 bytes each) and offset arrays o_n (one int per record), and each
+ * parameter is the difference in time per record between two loops that only differ by
+ * the operation being measured:
+ * </p>
+ * <ul>
+ * <li>r: acc += o1[i] + o2[i] against acc += o1[i]</li>
+ * <li>f: acc += t1[o1[i]] against acc += o1[i]</li>
+ * <li>l: acc += t1[o1[i]] & t2[o2[i]] against two separate lookups</li>
+ * <li>t: if(t1[o1[i]]) answer[j++] = i, with a table of 0s, against acc += t1[o1[i]]</li>
+ * <li>a: the same if statement with a table of 1s against a table of 0s</li>
+ * <li>m: the same if statement with a table of random 0s and 1s, less the cost of the
+ * answers it writes, divided by the misprediction rate q of Example 4.5</li>
+ * </ul>
+ * <p>
+ * Each loop is run until it has been compiled, and its fastest run is kept. Times are
+ * converted to cycles with the clock rate of the CPU (from /proc/cpuinfo, or given on
+ * the command line), so the costs are comparable to those in config.txt. If the clock
+ * rate is unknown, the costs are written in nanoseconds, which gives the same plans.
+ * Negative differences, which superscalar execution can produce for very cheap
+ * operations, are written as 0.
+ * </p>
+ */
+public class CostCalibrator {
+    private static final String USAGE =
+        "Usage: java CostCalibrator [options] config_file\n"
+        + "    --ghz x        clock rate of the CPU (default: read from /proc/cpuinfo)\n"
+        + "    --records n    records per benchmark loop (default 4194304)";
+
+    /** size of each predicate table, as in template/branch_mispred.c */
+    private static final int TABLE_SIZE = 3000;
+
+    /** runs of each loop before it is timed, so that it is compiled */
+    private static final int WARMUP_RUNS = 10;
+
+    /** timed runs of each loop; the fastest one counts */
+    private static final int RUNS = 10;
+
+    /** results of the benchmark loops end up here, so they cannot be optimized away */
+    static volatile long sink;
+
+    private final int records;
+    private final int[] o1;
+    private final int[] o2;
+    private final byte[] zeros;
+    private final byte[] ones;
+    private final byte[] half;
+    private final int[] answer;
+
+    /**
+     * Generates the data the benchmarks run over.
+     *
+     * @param records number of records each benchmark loop scans
+     */
+    CostCalibrator(int records) {
+        this.records = records;
+        Random random = new Random(records);
+        this.o1 = new int[records];
+        this.o2 = new int[records];
+        for (int i = 0; i < records; i++) {
+            o1[i] = random.nextInt(TABLE_SIZE);
+            o2[i] = random.nextInt(TABLE_SIZE);
+        }
+        this.zeros = new byte[TABLE_SIZE];
+        this.ones = new byte[TABLE_SIZE];
+        this.half = new byte[TABLE_SIZE];
+        for (int x = 0; x < TABLE_SIZE; x++) {
+            ones[x] = 1;
+            half[x] = (byte) random.nextInt(2);
+        }
+        this.answer = new int[records];
+    }
+
+    /**
+     * Runs every benchmark and derives the cost model from the results.
+     *
+     * @param cyclesPerNano clock rate of the CPU in GHz, or 0 to keep the costs in nanoseconds
+     * @return the cost model of this machine
+     */
+    CostModel calibrate(double cyclesPerNano) {
+        double[] times = new double[7];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = Double.MAX_VALUE;
+        }
+        /* interleave the loops, so the if statement is compiled for all three tables */
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            for (int loop = 0; loop < times.length; loop++) {
+                long start = System.nanoTime();
+                sink += runLoop(loop);
+                double time = (double) (System.nanoTime() - start) / records;
+                if (run >= WARMUP_RUNS) {
+                    times[loop] = Math.min(times[loop], time);
+                }
+            }
+        }
+        double read = times[0];
+        double read2 = times[1];
+        double lookup = times[2];
+        double and = times[3];
+        double branch0 = times[4];
+        double branch1 = times[5];
+        double branchHalf = times[6];
+
+        /* p of the table of random 0s and 1s, as seen through the offsets */
+        double p = (double) branch(half, o1, answer, records) / records;
+        double q = Math.min(p, 1 - p);
+
+        double r = read2 - read;
+        double f = lookup - read;
+        double l = and - 2 * lookup + read - r;
+        double t = branch0 - lookup;
+        double a = branch1 - branch0;
+        double m = (branchHalf - branch0 - p * a) / q;
+
+        double scale = cyclesPerNano > 0 ? cyclesPerNano : 1;
+        return new CostModel(toCost(r, scale), toCost(t, scale), toCost(l, scale), toCost(m, scale),
+                toCost(a, scale), toCost(f, scale));
+    }
+
+    /**
+     * @return a time per record as a cost, rounded to two decimals
+     */
+    private static float toCost(double nanos, double scale) {
+        return Math.max(0, Math.round(nanos * scale * 100) / 100f);
+    }
+
+    /**
+     * Runs one of the benchmark loops over every record.
+     *
+     * @return a value that depends on every record
+     */
+    private long runLoop(int loop) {
+        switch (loop) {
+        case 0:
+            return read(o1, records);
+        case 1:
+            return read2(o1, o2, records);
+        case 2:
+            return lookup(half, o1, records);
+        case 3:
+            return and(half, o1, half, o2, records);
+        case 4:
+            return branch(zeros, o1, answer, records);
+        case 5:
+            return branch(ones, o1, answer, records);
+        default:
+            return branch(half, o1, answer, records);
+        }
+    }
+
+    private static long read(int[] o1, int records) {
+        long acc = 0;
+        for (int i = 0; i < records; i++) {
+            acc += o1[i];
+        }
+        return acc;
+    }
+
+    private static long read2(int[] o1, int[] o2, int records) {
+        long acc = 0;
+        for (int i = 0; i < records; i++) {
+            acc += o1[i] + o2[i];
+        }
+        return acc;
+    }
+
+    private static long lookup(byte[] t1, int[] o1, int records) {
+        long acc = 0;
+        for (int i = 0; i < records; i++) {
+            acc += t1[o1[i]];
+        }
+        return acc;
+    }
+
+    private static long and(byte[] t1, int[] o1, byte[] t2, int[] o2, int records) {
+        long acc = 0;
+        for (int i = 0; i < records; i++) {
+            acc += t1[o1[i]] & t2[o2[i]];
+        }
+        return acc;
+    }
+
+    private static int branch(byte[] t1, int[] o1, int[] answer, int records) {
+        int j = 0;
+        for (int i = 0; i < records; i++) {
+            if (t1[o1[i]] != 0) {
+                answer[j++] = i;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * @return clock rate of the CPU in GHz according to /proc/cpuinfo, or 0 if unknown
+     */
+    private static double readClockRate() {
+        try {
+            BufferedReader in = new BufferedReader(new FileReader("/proc/cpuinfo"));
+            try {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.startsWith("cpu MHz")) {
+                        return Double.parseDouble(line.substring(line.indexOf(':') + 1).trim()) / 1000;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException exception) {
+            /* not on Linux */
+        } catch (NumberFormatException exception) {
+            /* unexpected format */
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the cost model in the format of config.txt.
+     */
+    static void write(CostModel model, File configFile, String comment) throws IOException {
+        Writer out = new FileWriter(configFile);
+        try {
+            out.write("# " + comment + "\n");
+            out.write("r = " + model.getR() + "\n");
+            out.write("t = " + model.getT() + "\n");
+            out.write("l = " + model.getL() + "\n");
+            out.write("m = " + model.getM() + "\n");
+            out.write("a = " + model.getA() + "\n");
+            out.write("f = " + model.getF() + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        double ghz = -1;
+        int records = 1 << 22;
+        int arg = 0;
+        try {
+            for (; arg + 1 < args.length && args[arg].startsWith("--"); arg += 2) {
+                if (args[arg].equals("--ghz")) {
+                    ghz = Double.parseDouble(args[arg + 1]);
+                } else if (args[arg].equals("--records")) {
+                    records = Integer.parseInt(args[arg + 1]);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println(USAGE);
+            return;
+        }
+        if (args.length - arg != 1 || records < 1) {
+            System.out.println(USAGE);
+            return;
+        }
+        if (ghz < 0) {
+            ghz = readClockRate();
+        }
+
+        CostModel model = new CostCalibrator(records).calibrate(ghz);
+        String comment = ghz > 0
+            ? String.format("measured by CostCalibrator, in cycles at %.2f GHz", ghz)
+            : "measured by CostCalibrator, in nanoseconds (clock rate unknown)";
+        try {
+            write(model, new File(args[arg]), comment);
+        } catch (IOException exception) {
+            System.out.println(exception.getMessage());
+            return;
+        }
+        System.out.println(model);
+    }
+}
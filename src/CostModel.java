@@ -0,0 +1,216 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * <p>
+ * Immutable description of the machine we are optimizing for, i.e. the parameters of the
+ * cost estimation explained in section 4.2 of <i>Selection Conditions in Main Memory</i>:
+ * </p>
+ * <ul>
+ * <li>r: cost of accessing an array element (t_i[o_i[i]])</li>
+ * <li>t: cost of performing an if test</li>
+ * <li>l: cost of performing a logical "and"</li>
+ * <li>m: cost of a branch misprediction</li>
+ * <li>a: cost of writing an answer to the answer array and incrementing the answer index</li>
+ * <li>f: cost of applying a selection function (the same for all f_i)</li>
+ * </ul>
+ * <p>
+ * A CostModel is parsed and validated once, and the costs that only depend on the number
+ * of conditions in an &-term are computed up front, so no parsing or property lookups
+ * happen while optimizing. Since instances are immutable, optimizers for different
+ * machine profiles can run side by side in the same JVM.
+ * </p>
+ */
+public final class CostModel {
+    /** the machine described by the config.txt that ships with the optimizer */
+    public static final CostModel DEFAULT = new CostModel(1, 2, 1, 16, 2, 4);
+
+    /** &-terms up to this many conditions have their costs precomputed */
+    private static final int PRECOMPUTED_TERMS = QueryOptimizerUtils.BITS_PER_BITMASK;
+
+    private static final String[] PARAMETERS = {"r", "t", "l", "m", "a", "f"};
+
+    private final float r;
+    private final float t;
+    private final float l;
+    private final float m;
+    private final float a;
+    private final float f;
+
+    /** fixed cost of an &-term, indexed by its number of conditions */
+    private final float[] fixedCost;
+    /** cost of an &-term evaluated with the no-branch algorithm, indexed by its number of conditions */
+    private final float[] noBranchCost;
+
+    /**
+     * @param r cost of accessing an array element
+     * @param t cost of performing an if test
+     * @param l cost of performing a logical "and"
+     * @param m cost of a branch misprediction
+     * @param a cost of writing an answer
+     * @param f cost of applying a selection function
+     * @throws IllegalArgumentException if any of the costs is negative or not a number
+     */
+    public CostModel(float r, float t, float l, float m, float a, float f) {
+        float[] values = {r, t, l, m, a, f};
+        for (int i = 0; i < values.length; i++) {
+            if (!(values[i] >= 0) || Float.isInfinite(values[i])) {
+                throw new IllegalArgumentException("invalid value for " + PARAMETERS[i] + ": " + values[i]);
+            }
+        }
+        this.r = r;
+        this.t = t;
+        this.l = l;
+        this.m = m;
+        this.a = a;
+        this.f = f;
+
+        this.fixedCost = new float[PRECOMPUTED_TERMS + 1];
+        this.noBranchCost = new float[PRECOMPUTED_TERMS + 1];
+        for (int k = 0; k <= PRECOMPUTED_TERMS; k++) {
+            fixedCost[k] = calculateFixedCost(k);
+            noBranchCost[k] = calculateNoBranchCost(k);
+        }
+    }
+
+    /**
+     * @param config java properties with the parameters r, t, l, m, a and f
+     * @return the cost model described by the properties
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    public static CostModel fromProperties(Properties config) {
+        float[] values = new float[PARAMETERS.length];
+        for (int i = 0; i < PARAMETERS.length; i++) {
+            String value = config.getProperty(PARAMETERS[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("missing value for " + PARAMETERS[i]);
+            }
+            try {
+                values[i] = Float.parseFloat(value);
+            } catch (NumberFormatException exception) {
+                throw new IllegalArgumentException("invalid value for " + PARAMETERS[i] + ": " + value);
+            }
+        }
+        return new CostModel(values[0], values[1], values[2], values[3], values[4], values[5]);
+    }
+
+    /**
+     * @param configFile java properties file with the parameters r, t, l, m, a and f
+     * @return the cost model described by the file
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a parameter is missing or invalid
+     */
+    public static CostModel load(File configFile) throws IOException {
+        Properties config = new Properties();
+        InputStream in = new FileInputStream(configFile);
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(config);
+    }
+
+    public float getR() {
+        return r;
+    }
+
+    public float getT() {
+        return t;
+    }
+
+    public float getL() {
+        return l;
+    }
+
+    public float getM() {
+        return m;
+    }
+
+    public float getA() {
+        return a;
+    }
+
+    public float getF() {
+        return f;
+    }
+
+    /**
+     * @param k number of conditions in an &-term
+     * @return fixed cost of an &-term with k conditions
+     */
+    public float fixedCost(int k) {
+        return k < fixedCost.length ? fixedCost[k] : calculateFixedCost(k);
+    }
+
+    /**
+     * @param k number of conditions in an &-term
+     * @return cost of an &-term with k conditions if we use no-branch optimization
+     */
+    public float noBranchCost(int k) {
+        return k < noBranchCost.length ? noBranchCost[k] : calculateNoBranchCost(k);
+    }
+
+    /**
+     * @return the parameters as java properties, in the format of config.txt
+     */
+    public Properties toProperties() {
+        Properties config = new Properties();
+        float[] values = {r, t, l, m, a, f};
+        for (int i = 0; i < PARAMETERS.length; i++) {
+            config.setProperty(PARAMETERS[i], String.valueOf(values[i]));
+        }
+        return config;
+    }
+
+    private float calculateFixedCost(int k) {
+        float cost = 0;
+        /* kr + (k - 1)l */
+        cost += k * r + (k - 1) * l;
+        /* f1 + ... + fk */
+        cost += k * f;
+        /* + t ... */
+        cost += t;
+        return cost;
+    }
+
+    private float calculateNoBranchCost(int k) {
+        float cost = 0;
+        /* kr + (k - 1)l */
+        cost += k * r + (k - 1) * l;
+        /* f1 + ... + fk */
+        cost += k * f;
+        /* + a */
+        cost += a;
+        return cost;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CostModel)) {
+            return false;
+        }
+        CostModel c = (CostModel) o;
+        return Float.compare(r, c.r) == 0 && Float.compare(t, c.t) == 0 && Float.compare(l, c.l) == 0
+            && Float.compare(m, c.m) == 0 && Float.compare(a, c.a) == 0 && Float.compare(f, c.f) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = Float.floatToIntBits(r);
+        h = 31 * h + Float.floatToIntBits(t);
+        h = 31 * h + Float.floatToIntBits(l);
+        h = 31 * h + Float.floatToIntBits(m);
+        h = 31 * h + Float.floatToIntBits(a);
+        h = 31 * h + Float.floatToIntBits(f);
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "r=" + r + " t=" + t + " l=" + l + " m=" + m + " a=" + a + " f=" + f;
+    }
+}
@@ -0,0 +1,444 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>
+ * Optimizer for selection conditions combined with both AND and OR (see
+ * BooleanExpression), rather than only the flat conjunctions of Algorithm 4.11. For
+ * every AND and OR of the expression it chooses how to group the operands into tests
+ * that are evaluated without branching (with & or |), in which order to test them
+ * (joined with && or ||), and whether a nested operation is computed as a value inside
+ * a test or evaluated as a chain of tests of its own.
+ * </p>
+ * <p>
+ * The costs extend those of section 4.2, as computed by QueryPlan. Computing a value
+ * costs r + f per condition and l per & or |; testing it costs t, plus m whenever the
+ * branch is mispredicted, i.e. with probability q = min(p, 1 - p). A test in a chain is
+ * only evaluated if the tests before it did not decide the outcome: for &&, with the
+ * probability that they all held, and for ||, by De Morgan's law, with the probability
+ * that they all failed. Writing out a matching record costs a, and the whole expression
+ * or, for an AND, its last test can be evaluated with the no-branch algorithm instead.
+ * For a flat conjunction these are exactly the costs of Algorithm 4.11, and the search
+ * finds a plan that is just as cheap.
+ * </p>
+ * <p>
+ * An AND or OR with up to MAX_EXHAUSTIVE_OPERANDS operands is searched exhaustively,
+ * with a dynamic program over the subsets of its operands that takes O(3^n) time.
+ * Larger ones are searched like HeuristicOptimizer does: the operands are ordered by
+ * c-metric and only cut into consecutive tests.
+ * </p>
+ */
+public final class ExpressionOptimizer {
+    /** most operands of an AND or OR that are searched exhaustively */
+    static final int MAX_EXHAUSTIVE_OPERANDS = 14;
+
+    /** separates the selectivities of a query from its expression */
+    private static final char EXPRESSION_SEPARATOR = ':';
+
+    private ExpressionOptimizer() {
+    }
+
+    /**
+     * Optimizes a line of a query file, which holds the selectivities of the selection
+     * conditions, optionally followed by a colon and an expression over them:
+     * <pre>
+     * 0.2 0.5 0.3 : (1 & 2) | 3
+     * </pre>
+     * Without an expression the query is the AND of all of its conditions, and is
+     * optimized by QueryOptimizer. An expression must use every condition the line has a
+     * selectivity for.
+     *
+     * @param query line of the query file
+     * @param model costs of the machine we are optimizing for
+     * @return statistics output to be printed, or null for a blank line
+     * @throws IllegalArgumentException if a selectivity or the expression is invalid
+     */
+    public static String optimize(String query, CostModel model) {
+        int separator = query.indexOf(EXPRESSION_SEPARATOR);
+        String values = (separator < 0 ? query : query.substring(0, separator)).trim();
+        if (values.isEmpty()) {
+            if (separator < 0) {
+                return null;
+            }
+            throw new IllegalArgumentException("no selectivities in \"" + query + "\"");
+        }
+        String[] fields = values.split("\\s+");
+        Float[] selectivities = new Float[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            try {
+                selectivities[i] = Float.parseFloat(fields[i]);
+            } catch (NumberFormatException exception) {
+                throw new IllegalArgumentException("invalid selectivity \"" + fields[i] + "\"");
+            }
+        }
+        if (selectivities.length > QueryOptimizerUtils.BITS_PER_BITMASK) {
+            throw new IllegalArgumentException("cannot optimize more than "
+                    + QueryOptimizerUtils.BITS_PER_BITMASK + " selection conditions");
+        }
+        if (separator < 0) {
+            /* a plain conjunction gets exactly the plan of Algorithm 4.11 */
+            QueryOptimizer optimizer = QueryOptimizer.forQuery(selectivities, model, null);
+            optimizer.optimize();
+            return optimizer.getFormattedStatistics();
+        }
+        String text = query.substring(separator + 1).trim();
+        BooleanExpression expression = BooleanExpression.parse(text, selectivities.length);
+        /* a selectivity without a condition is most likely a mistake in the expression */
+        int unused = Long.numberOfTrailingZeros(~expression.bitmask);
+        if (unused < selectivities.length) {
+            throw new IllegalArgumentException("selection condition " + (unused + 1) + " is not used in \""
+                    + text + "\"");
+        }
+
+        ExpressionPlan plan = optimize(expression, selectivities, model);
+        String header = QueryOptimizerUtils.formatSelectivities(selectivities) + " " + EXPRESSION_SEPARATOR + " "
+            + expression;
+        return QueryOptimizerUtils.formatStatistics(header, plan.getFormattedCode(), plan.cost);
+    }
+
+    /**
+     * Optimizes every line of the query file (see optimize(String, CostModel)) and writes
+     * out their statistics in input order.
+     *
+     * @param queryFileName path to the query file, or "-" for the standard input
+     * @param model costs of the machine we are optimizing for
+     * @param out where to write the statistics
+     * @throws IOException if the query file cannot be read or the output written
+     * @throws IllegalArgumentException if a query is invalid
+     */
+    static void optimizeAll(String queryFileName, CostModel model, Writer out) throws IOException {
+        InputStream stream = QueryReader.STDIN.equals(queryFileName) ? System.in : new FileInputStream(queryFileName);
+        BufferedReader in = new BufferedReader(new InputStreamReader(stream), 1 << 16);
+        try {
+            long lineNumber = 0;
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lineNumber++;
+                String statistics;
+                try {
+                    statistics = optimize(line, model);
+                } catch (IllegalArgumentException exception) {
+                    throw new IllegalArgumentException("line " + lineNumber + ": " + exception.getMessage());
+                }
+                if (statistics != null) {
+                    out.write(statistics);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param expression expression over the selection conditions
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     * @return root of the cheapest plan found for the expression
+     */
+    static ExpressionPlan optimize(BooleanExpression expression, Float[] selectivities, CostModel model) {
+        return new Search(expression, selectivities, model).root();
+    }
+
+    /**
+     * Search over the plans of one AND or OR (or of a single condition, as an AND of
+     * one), once the best plans of its operands are known. Tests are identified by the
+     * bitmask of the operands they hold.
+     */
+    private static final class Search {
+        private final CostModel model;
+        private final boolean and;
+        private final BooleanExpression[] operands;
+        private final int n;
+        /** selectivity of each operand */
+        private final float[] selectivity;
+        /** cost of computing each operand without branching */
+        private final float[] valueCost;
+        /** cheapest chain for each nested operation among the operands, or null */
+        private final ExpressionPlan[] chain;
+
+        /* the tests of the plan found by search() */
+        private List<Long> tests;
+        private long tail;
+        private float cost;
+
+        Search(BooleanExpression expression, Float[] selectivities, CostModel model) {
+            this.model = model;
+            this.and = expression.operator != BooleanExpression.OR;
+            this.operands = expression.operator == BooleanExpression.ATOM
+                ? new BooleanExpression[]{expression} : expression.operands;
+            this.n = operands.length;
+            this.selectivity = new float[n];
+            this.valueCost = new float[n];
+            this.chain = new ExpressionPlan[n];
+            for (int i = 0; i < n; i++) {
+                selectivity[i] = operands[i].selectivity(selectivities);
+                valueCost[i] = valueCost(operands[i]);
+                if (operands[i].operator != BooleanExpression.ATOM) {
+                    chain[i] = new Search(operands[i], selectivities, model).chain();
+                }
+            }
+        }
+
+        /**
+         * @return the cheapest plan for evaluating the operation and writing out the
+         * matching records
+         */
+        ExpressionPlan root() {
+            float a = model.getA();
+            if (and) {
+                /* the last test, or all of them, may be evaluated without branching */
+                search(a, true);
+                if (tests.isEmpty()) {
+                    return value(tail, cost, true);
+                }
+                return chain(cost, tail != 0);
+            }
+            search(0, false);
+            float branching = cost + selectivity(all()) * a;
+            float noBranch = valueCost(all()) + a;
+            if (noBranch < branching) {
+                return value(all(), noBranch, true);
+            }
+            return chain(branching, false);
+        }
+
+        /**
+         * @return the cheapest chain of tests for the operation, or null if that is a
+         * single test of its value
+         */
+        ExpressionPlan chain() {
+            search(0, false);
+            return tests.size() == 1 ? null : chain(cost, false);
+        }
+
+        /**
+         * Finds the cheapest sequence of tests, and the no-branch tail if there is one.
+         *
+         * @param end cost once every test has passed (for an AND) or failed (for an OR)
+         * @param noBranch true to allow evaluating the last test without branching
+         */
+        private void search(float end, boolean noBranch) {
+            tests = new ArrayList<Long>();
+            tail = 0;
+            if (n <= MAX_EXHAUSTIVE_OPERANDS) {
+                searchSubsets(end, noBranch);
+            } else {
+                searchOrder(end, noBranch);
+            }
+        }
+
+        /**
+         * Dynamic program over the subsets of the operands: best[s] is the cheapest way to
+         * evaluate the operands in s, once the tests of the other operands have been
+         * evaluated without deciding the outcome.
+         */
+        private void searchSubsets(float end, boolean noBranch) {
+            int size = 1 << n;
+            float l = model.getL();
+            float[] groupSelectivity = new float[size];
+            float[] groupValueCost = new float[size];
+            float[] groupTestCost = new float[size];
+            for (int s = 1; s < size; s++) {
+                int lowest = s & -s;
+                int rest = s ^ lowest;
+                int i = Integer.numberOfTrailingZeros(lowest);
+                if (rest == 0) {
+                    groupSelectivity[s] = selectivity[i];
+                    groupValueCost[s] = valueCost[i];
+                } else {
+                    groupSelectivity[s] = and ? groupSelectivity[rest] * selectivity[i]
+                        : 1 - (1 - groupSelectivity[rest]) * (1 - selectivity[i]);
+                    groupValueCost[s] = groupValueCost[rest] + l + valueCost[i];
+                }
+                groupTestCost[s] = rest == 0 ? testCost(i) : testCost(groupValueCost[s], groupSelectivity[s]);
+            }
+
+            float[] best = new float[size];
+            /* first test of the cheapest plan for s, or 0 to evaluate s without branching */
+            int[] first = new int[size];
+            best[0] = end;
+            for (int s = 1; s < size; s++) {
+                float b = noBranch ? groupValueCost[s] + model.getA() : Float.POSITIVE_INFINITY;
+                for (long x = QueryOptimizerUtils.nextSubmask(0, s); x != 0; x = QueryOptimizerUtils.nextSubmask(x, s)) {
+                    float p = groupSelectivity[(int) x];
+                    float c = groupTestCost[(int) x] + (and ? p : 1 - p) * best[s ^ (int) x];
+                    if (c < b) {
+                        b = c;
+                        first[s] = (int) x;
+                    }
+                }
+                best[s] = b;
+            }
+
+            cost = best[size - 1];
+            for (int s = size - 1; s != 0; s ^= first[s]) {
+                if (first[s] == 0) {
+                    tail = s;
+                    break;
+                }
+                tests.add((long) first[s]);
+            }
+        }
+
+        /**
+         * Dynamic program over the suffixes of the operands ordered by c-metric, as in
+         * HeuristicOptimizer: best[i] is the cheapest way to evaluate order[i..n-1].
+         */
+        private void searchOrder(float end, boolean noBranch) {
+            final float[] rank = new float[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                /* (p - 1) / cost, where p is the probability that the next test is evaluated */
+                rank[i] = ((and ? selectivity[i] : 1 - selectivity[i]) - 1) / testCost(i);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Float.compare(rank[i], rank[j]);
+                }
+            });
+
+            float l = model.getL();
+            float[] best = new float[n + 1];
+            /* next[i]: the first test holds order[i..next[i]-1], or next[i] is 0 to evaluate them without branching */
+            int[] next = new int[n + 1];
+            best[n] = end;
+            for (int i = n - 1; i >= 0; i--) {
+                float b = Float.POSITIVE_INFINITY;
+                /* product of the selectivities (for an AND) or of their complements (for an OR) */
+                float product = 1;
+                float value = -l;
+                for (int j = i + 1; j <= n; j++) {
+                    int operand = order[j - 1];
+                    product *= and ? selectivity[operand] : 1 - selectivity[operand];
+                    value += l + valueCost[operand];
+                    float p = and ? product : 1 - product;
+                    float test = j == i + 1 ? testCost(operand) : testCost(value, p);
+                    float c = test + (and ? p : 1 - p) * best[j];
+                    if (c < b) {
+                        b = c;
+                        next[i] = j;
+                    }
+                    if (noBranch && j == n && value + model.getA() < b) {
+                        b = value + model.getA();
+                        next[i] = 0;
+                    }
+                }
+                best[i] = b;
+            }
+
+            cost = best[0];
+            for (int i = 0; i < n; i = next[i]) {
+                long group = 0;
+                for (int j = i; j < (next[i] == 0 ? n : next[i]); j++) {
+                    group |= 1L << order[j];
+                }
+                if (next[i] == 0) {
+                    tail = group;
+                    break;
+                }
+                tests.add(group);
+            }
+        }
+
+        /**
+         * @return cost of testing a value with a single branch
+         */
+        private float testCost(float valueCost, float p) {
+            float q = p <= .5 ? p : 1 - p;
+            return valueCost + model.getT() + model.getM() * q;
+        }
+
+        /**
+         * @return cost of the cheaper test of a single operand: of its value, or its chain
+         */
+        private float testCost(int operand) {
+            float cost = testCost(valueCost[operand], selectivity[operand]);
+            return chain[operand] != null && chain[operand].cost < cost ? chain[operand].cost : cost;
+        }
+
+        /**
+         * @return chain of the tests found by search()
+         */
+        private ExpressionPlan chain(float cost, boolean noBranch) {
+            List<ExpressionPlan> plans = new ArrayList<ExpressionPlan>();
+            for (long group : tests) {
+                int operand = Long.numberOfTrailingZeros(group);
+                boolean single = Long.bitCount(group) == 1;
+                if (single && chain[operand] != null
+                        && chain[operand].cost < testCost(valueCost[operand], selectivity[operand])) {
+                    plans.add(chain[operand]);
+                } else {
+                    plans.add(value(group, valueCost(group), false));
+                }
+            }
+            if (tail != 0) {
+                plans.add(value(tail, valueCost(tail), false));
+            }
+            return new ExpressionPlan(and ? BooleanExpression.AND : BooleanExpression.OR,
+                    plans.toArray(new ExpressionPlan[plans.size()]), selectivity(all()), cost, noBranch);
+        }
+
+        /**
+         * @return the operands in the group, computed without branching
+         */
+        private ExpressionPlan value(long group, float cost, boolean noBranch) {
+            BooleanExpression[] values = new BooleanExpression[Long.bitCount(group)];
+            int v = 0;
+            for (long bits = group; bits != 0; bits &= bits - 1) {
+                values[v++] = operands[Long.numberOfTrailingZeros(bits)];
+            }
+            return new ExpressionPlan(and ? BooleanExpression.AND : BooleanExpression.OR, values, selectivity(group),
+                    cost, noBranch);
+        }
+
+        private long all() {
+            return n == 64 ? -1L : (1L << n) - 1;
+        }
+
+        /**
+         * @return probability that the operands in the group combined with the operator hold
+         */
+        private float selectivity(long group) {
+            float product = 1;
+            for (long bits = group; bits != 0; bits &= bits - 1) {
+                float p = selectivity[Long.numberOfTrailingZeros(bits)];
+                product *= and ? p : 1 - p;
+            }
+            return and ? product : 1 - product;
+        }
+
+        /**
+         * @return cost of computing the operands in the group without branching
+         */
+        private float valueCost(long group) {
+            float cost = (Long.bitCount(group) - 1) * model.getL();
+            for (long bits = group; bits != 0; bits &= bits - 1) {
+                cost += valueCost[Long.numberOfTrailingZeros(bits)];
+            }
+            return cost;
+        }
+
+        /**
+         * @return cost of computing the expression without branching
+         */
+        private float valueCost(BooleanExpression expression) {
+            if (expression.operator == BooleanExpression.ATOM) {
+                return model.getR() + model.getF();
+            }
+            float cost = (expression.operands.length - 1) * model.getL();
+            for (BooleanExpression operand : expression.operands) {
+                cost += valueCost(operand);
+            }
+            return cost;
+        }
+    }
+}
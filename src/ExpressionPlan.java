@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Plan for evaluating (part of) a BooleanExpression, as chosen by ExpressionOptimizer.
+ * A plan is either:
+ * </p>
+ * <ul>
+ * <li>a value: operands of an AND or OR evaluated without branching and combined with &
+ * or |, like an &-term of Algorithm 4.11 (an |-term for an OR)</li>
+ * <li>a chain: tests joined with && (for an AND) or || (for an OR), each of which is a
+ * value tested with a single branch or a nested chain</li>
+ * </ul>
+ * <p>
+ * The root of a plan for a whole expression is a chain whose last test may instead be
+ * evaluated with the no-branch algorithm (for an AND), or a value evaluated entirely
+ * with the no-branch algorithm, and is rendered with the same code templates as a
+ * QueryPlan.
+ * </p>
+ */
+final class ExpressionPlan {
+    /** operator of the operands or tests: BooleanExpression.AND or OR */
+    final int operator;
+    /** operands combined without branching, for a value */
+    final BooleanExpression[] operands;
+    /** tests joined with && or ||, for a chain */
+    final ExpressionPlan[] tests;
+    /** probability that the plan holds */
+    final float selectivity;
+    /**
+     * for a value, cost of computing it; for a chain, expected cost of its tests including
+     * branch mispredictions; for the root, expected cost of the whole plan per record
+     */
+    final float cost;
+    /** true if the last test of the chain, or the whole value, uses the no-branch algorithm */
+    final boolean noBranchFlag;
+
+    /**
+     * Creates a value.
+     */
+    ExpressionPlan(int operator, BooleanExpression[] operands, float selectivity, float cost, boolean noBranchFlag) {
+        this.operator = operator;
+        this.operands = operands;
+        this.tests = null;
+        this.selectivity = selectivity;
+        this.cost = cost;
+        this.noBranchFlag = noBranchFlag;
+    }
+
+    /**
+     * Creates a chain.
+     */
+    ExpressionPlan(int operator, ExpressionPlan[] tests, float selectivity, float cost, boolean noBranchFlag) {
+        this.operator = operator;
+        this.operands = null;
+        this.tests = tests;
+        this.selectivity = selectivity;
+        this.cost = cost;
+        this.noBranchFlag = noBranchFlag;
+    }
+
+    /**
+     * @return true if the plan is evaluated without branching
+     */
+    boolean isValue() {
+        return tests == null;
+    }
+
+    /**
+     * @return formatted c code for this plan, as the root of the plan for an expression
+     */
+    String getFormattedCode() {
+        List<String> terms = new ArrayList<String>();
+        if (isValue()) {
+            terms.add(getFormattedTest());
+        } else if (operator == BooleanExpression.AND) {
+            for (ExpressionPlan test : tests) {
+                terms.add(test.getFormattedTest());
+            }
+        } else {
+            /* a single condition joined with ||, since QueryOptimizerUtils joins terms with && */
+            terms.add(joinTests());
+        }
+        return QueryOptimizerUtils.formatCode(terms, noBranchFlag);
+    }
+
+    /**
+     * @return formatted code for this plan as an operand of && or ||
+     */
+    private String getFormattedTest() {
+        if (isValue()) {
+            if (operands.length == 1) {
+                return formatValue(operands[0]);
+            }
+            StringBuilder s = new StringBuilder("(");
+            appendValues(s, operator, operands);
+            return s.append(')').toString();
+        }
+        return "(" + joinTests() + ")";
+    }
+
+    private String joinTests() {
+        StringBuilder s = new StringBuilder();
+        for (ExpressionPlan test : tests) {
+            if (s.length() > 0) {
+                s.append(operator == BooleanExpression.AND ? " && " : " || ");
+            }
+            s.append(test.getFormattedTest());
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return formatted code that computes the expression without branching
+     */
+    private static String formatValue(BooleanExpression expression) {
+        if (expression.operator == BooleanExpression.ATOM) {
+            return QueryOptimizerUtils.formatAtom(expression.condition + 1);
+        }
+        StringBuilder s = new StringBuilder("(");
+        appendValues(s, expression.operator, expression.operands);
+        return s.append(')').toString();
+    }
+
+    private static void appendValues(StringBuilder s, int operator, BooleanExpression[] operands) {
+        for (int i = 0; i < operands.length; i++) {
+            if (i > 0) {
+                s.append(operator == BooleanExpression.AND ? " & " : " | ");
+            }
+            s.append(formatValue(operands[i]));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>
+ * Non-exhaustive optimizer for queries with too many selection conditions for the
+ * 2^k search space of Algorithm 4.11. Every plan Algorithm 4.11 produces is a chain of
+ * &-terms joined by &&s, E1 && (E2 && (... && En)), and its cost only depends on how the
+ * conditions are grouped into &-terms and in which order the &-terms appear.
+ * </p>
+ * <p>
+ * The heuristic fixes the order of the conditions up front, by ascending c-metric
+ * ((p - 1) / fcost(E), as in Lemma 4.8), which for single conditions is ascending
+ * selectivity. It then chooses the cheapest way of cutting that order into consecutive
+ * &-terms with a dynamic program over the suffixes of the order, which takes O(k^2)
+ * time and O(k) memory. The chosen plan is exact whenever the optimal plan groups the
+ * conditions in selectivity order, and its cost is computed with the same formulas as
+ * the exhaustive search.
+ * </p>
+ */
+final class HeuristicOptimizer {
+
+    private HeuristicOptimizer() {
+    }
+
+    /**
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     * @return root of the chosen plan tree for all of the selection conditions
+     * @throws IllegalArgumentException if there are more conditions than fit in a bitmask
+     */
+    static QueryPlan optimize(final Float[] selectivities, CostModel model) {
+        int k = selectivities.length;
+        if (k > QueryOptimizerUtils.BITS_PER_BITMASK) {
+            throw new IllegalArgumentException("cannot optimize more than "
+                    + QueryOptimizerUtils.BITS_PER_BITMASK + " selection conditions");
+        }
+
+        /* order the conditions by c-metric; ties keep their input order */
+        Integer[] order = new Integer[k];
+        for (int i = 0; i < k; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i, Integer j) {
+                return Float.compare(selectivities[i], selectivities[j]);
+            }
+        });
+
+        /*
+         * cost[i]: cheapest plan for the conditions order[i..k-1]
+         * end[i]: the first &-term of that plan holds order[i..end[i]-1]
+         */
+        float[] cost = new float[k + 1];
+        int[] end = new int[k + 1];
+        boolean[] noBranch = new boolean[k + 1];
+        float m = model.getM();
+        float a = model.getA();
+        for (int i = k - 1; i >= 0; i--) {
+            float best = Float.POSITIVE_INFINITY;
+            float p = 1;
+            for (int j = i + 1; j <= k; j++) {
+                /* the &-term order[i..j-1] */
+                p *= selectivities[order[j - 1]];
+                int n = j - i;
+                float termCost;
+                if (j == k) {
+                    /* the last &-term may also be evaluated without branching */
+                    float branchCost = model.fixedCost(n) + (m * a + p * a);
+                    noBranch[i] = branchCost > model.noBranchCost(n);
+                    termCost = noBranch[i] ? model.noBranchCost(n) : branchCost;
+                } else {
+                    float q = p <= .5 ? p : 1 - p;
+                    termCost = model.fixedCost(n) + m * q + p * cost[j];
+                }
+                if (termCost < best) {
+                    best = termCost;
+                    end[i] = j;
+                }
+            }
+            cost[i] = best;
+        }
+
+        return toPlan(selectivities, order, cost, end, noBranch, 0, model);
+    }
+
+    /**
+     * Builds the plan tree for the conditions order[i..k-1] from the chosen cuts.
+     */
+    private static QueryPlan toPlan(Float[] selectivities, Integer[] order, float[] cost, int[] end,
+            boolean[] noBranch, int i, CostModel model) {
+        int k = order.length;
+        int j = end[i];
+        long term = 0;
+        float product = 1;
+        for (int x = i; x < j; x++) {
+            term |= 1L << order[x];
+            product *= selectivities[order[x]];
+        }
+        if (j == k) {
+            return new QueryPlan(term, j - i, product, noBranch[i], cost[i], model);
+        }
+
+        /* &-terms on the left of a && are always evaluated with branching */
+        QueryPlan left = new QueryPlan(term, j - i, product, false,
+                model.fixedCost(j - i) + (model.getM() * model.getA() + product * model.getA()), model);
+        QueryPlan right = toPlan(selectivities, order, cost, end, noBranch, j, model);
+
+        /* every node carries the flag of the last &-term, which decides how the plan is printed */
+        QueryPlan plan = new QueryPlan(term | right.bitmask, k - i, product * right.productOfSelectivities,
+                right.noBranchFlag, cost[i], model);
+        plan.setChildren(left, right);
+        return plan;
+    }
+}
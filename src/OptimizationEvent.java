@@ -0,0 +1,50 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed for each optimization of a query while it is enabled in a
+ * recording, e.g. with java -XX:StartFlightRecording. Its duration covers the whole
+ * optimization, from the cache lookup to the plan tree.
+ */
+@Name("QueryOptimizer.Optimization")
+@Label("Query Optimization")
+@Category("Query Optimizer")
+@Description("Optimization of a single query, with its pruning counters and phase timings")
+class OptimizationEvent extends jdk.jfr.Event {
+    @Label("Conditions")
+    int conditions;
+
+    @Label("Source")
+    @Description("how the plan was found: exhaustive, parallel, incremental, cache or heuristic")
+    String source;
+
+    @Label("Pairs Considered")
+    long pairsConsidered;
+
+    @Label("Pruned by Lemma 4.8")
+    long prunedByCMetric;
+
+    @Label("Pruned by Lemma 4.9")
+    long prunedByDMetric;
+
+    @Label("Cost Evaluations")
+    long costEvaluations;
+
+    @Label("Plan Replacements")
+    long planReplacements;
+
+    @Label("Setup")
+    @Timespan
+    long setupNanos;
+
+    @Label("Search")
+    @Timespan
+    long searchNanos;
+
+    @Label("Plan Tree")
+    @Timespan
+    long planNanos;
+}
@@ -0,0 +1,422 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>
+ * Benchmark suite for the optimizer and the plan executor. Each benchmark is run for a
+ * number of warmup iterations, whose results are thrown away, and then for a number of
+ * measurement iterations. An iteration repeats the benchmarked operation until it has
+ * run for at least the iteration time, and its score is the average time per operation.
+ * The score of a benchmark is the mean over its measurement iterations, with the
+ * half-width of a 99.9% confidence interval as its error.
+ * </p>
+ * <p>
+ * The benchmarks are:
+ * </p>
+ * <ul>
+ * <li>optimize: QueryOptimizer end to end, from the selectivities to the formatted
+ * statistics</li>
+ * <li>initializeSearchSpace: step (1) of Algorithm 4.11, i.e. building the PlanTable</li>
+ * <li>searchSpace: initializeSearchSpace plus the loop over pairs of plans; the cost of
+ * the pair loop alone is the difference between the two</li>
+ * <li>format: rendering the statistics of a finished plan</li>
+ * <li>heuristic: the HeuristicOptimizer</li>
+ * <li>execute: running the chosen plan with the PlanExecutor, per scan of the data</li>
+ * <li>executeVector: the same with PlanExecutor.forPlan, which runs the plan with the
+ * Vector API if the JVM was started with --add-modules jdk.incubator.vector</li>
+ * <li>executeParallel: the same with a ParallelPlanExecutor, on --threads workers</li>
+ * </ul>
+ * <p>
+ * Every benchmark runs for every number of conditions k and every distribution of
+ * selectivities (uniform over [0, 1], or skewed towards 0 and 1 like the long queries
+ * in query.txt). A summary table is printed to STDOUT and the full results are written
+ * as JSON, in the same layout as JMH's JSON output, so that results of different builds
+ * can be compared by tools.
+ * </p>
+ */
+public class OptimizerBenchmark {
+    private static final String USAGE =
+        "Usage: java OptimizerBenchmark [options]\n"
+        + "    --k k1,k2,...          numbers of conditions (default 4,8,12,16,20)\n"
+        + "    --distributions d,...  uniform and/or skewed (default both)\n"
+        + "    --benchmarks b,...     benchmarks to run (default all)\n"
+        + "    --warmup n             warmup iterations (default 3)\n"
+        + "    --iterations n         measurement iterations (default 5)\n"
+        + "    --time-ms n            minimum length of an iteration (default 200)\n"
+        + "    --records n            records per scan for the execute benchmarks (default 1048576)\n"
+        + "    --threads n            workers of the executeParallel benchmark (default all processors)\n"
+        + "    --out file             JSON results (default bench.json)";
+
+    private static final String[] BENCHMARKS = {
+        "optimize", "initializeSearchSpace", "searchSpace", "format", "heuristic", "execute",
+        "executeVector", "executeParallel"
+    };
+
+    /** different queries cycled through by each benchmark */
+    private static final int QUERIES = 16;
+
+    /** size of each predicate table, as in template/branch_mispred.c */
+    private static final int TABLE_SIZE = 3000;
+
+    /** two-sided 99.9% quantiles of Student's t distribution, by degrees of freedom */
+    private static final double[] T_999 = {
+        Double.NaN, 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850
+    };
+
+    /** results of the benchmarked operations end up here, so they cannot be optimized away */
+    static volatile long sink;
+
+    private final CostModel model = CostModel.DEFAULT;
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationNanos = 200 * 1000000L;
+    private int records = 1 << 20;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** workers of the executeParallel benchmark, started on first use */
+    private ParallelPlanExecutor parallel;
+
+    /**
+     * A benchmarked operation.
+     */
+    private interface Operation {
+        /**
+         * @return any value that depends on the work done
+         */
+        long run();
+    }
+
+    /**
+     * Scores of a single benchmark, in microseconds per operation.
+     */
+    private static class Result {
+        final String benchmark;
+        final int k;
+        final String distribution;
+        final double[] scores;
+        final double score;
+        final double error;
+
+        Result(String benchmark, int k, String distribution, double[] scores) {
+            this.benchmark = benchmark;
+            this.k = k;
+            this.distribution = distribution;
+            this.scores = scores;
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            this.score = sum / scores.length;
+            if (scores.length > 1) {
+                double squares = 0;
+                for (double s : scores) {
+                    squares += (s - score) * (s - score);
+                }
+                int df = scores.length - 1;
+                double t = df < T_999.length ? T_999[df] : 3.291;
+                this.error = t * Math.sqrt(squares / df) / Math.sqrt(scores.length);
+            } else {
+                this.error = Double.NaN;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptimizerBenchmark bench = new OptimizerBenchmark();
+        int[] ks = {4, 8, 12, 16, 20};
+        String[] distributions = {"uniform", "skewed"};
+        String[] benchmarks = BENCHMARKS;
+        String out = "bench.json";
+        try {
+            for (int arg = 0; arg < args.length; arg += 2) {
+                String option = args[arg];
+                if (arg + 1 == args.length) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                String value = args[arg + 1];
+                if (option.equals("--k")) {
+                    String[] values = value.split(",");
+                    ks = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        ks[i] = Integer.parseInt(values[i]);
+                    }
+                } else if (option.equals("--distributions")) {
+                    distributions = value.split(",");
+                } else if (option.equals("--benchmarks")) {
+                    benchmarks = value.split(",");
+                } else if (option.equals("--warmup")) {
+                    bench.warmup = Integer.parseInt(value);
+                } else if (option.equals("--iterations")) {
+                    bench.iterations = Integer.parseInt(value);
+                } else if (option.equals("--time-ms")) {
+                    bench.iterationNanos = Long.parseLong(value) * 1000000L;
+                } else if (option.equals("--records")) {
+                    bench.records = Integer.parseInt(value);
+                } else if (option.equals("--threads")) {
+                    bench.threads = Integer.parseInt(value);
+                } else if (option.equals("--out")) {
+                    out = value;
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        System.out.println(String.format("%-22s %4s %-8s %14s %12s", "benchmark", "k", "dist", "score (us/op)", "error"));
+        for (String distribution : distributions) {
+            for (int k : ks) {
+                Float[][] queries = generateQueries(k, distribution, new Random(k));
+                for (String benchmark : benchmarks) {
+                    Result result = bench.run(benchmark, k, distribution, queries);
+                    results.add(result);
+                    System.out.println(String.format("%-22s %4d %-8s %14.3f %12.3f",
+                            benchmark, k, distribution, result.score, result.error));
+                }
+            }
+        }
+
+        if (bench.parallel != null) {
+            bench.parallel.shutdown();
+        }
+
+        Writer json = new FileWriter(new File(out));
+        try {
+            bench.writeJson(json, results);
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Runs one benchmark for queries with k conditions.
+     */
+    private Result run(String benchmark, int k, String distribution, Float[][] queries) {
+        Operation operation = createOperation(benchmark, k, queries);
+        for (int i = 0; i < warmup; i++) {
+            measure(operation);
+        }
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = measure(operation);
+        }
+        return new Result(benchmark, k, distribution, scores);
+    }
+
+    /**
+     * Runs the operation for at least the iteration time.
+     *
+     * @return average time per operation, in microseconds
+     */
+    private double measure(Operation operation) {
+        long operations = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            result += operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink += result;
+        return elapsed / 1000.0 / operations;
+    }
+
+    /**
+     * @return the operation measured by the named benchmark
+     * @throws IllegalArgumentException if there is no such benchmark
+     */
+    private Operation createOperation(String benchmark, final int k, final Float[][] queries) {
+        if (benchmark.equals("optimize")) {
+            return new Operation() {
+                private final StringBuilder statistics = new StringBuilder();
+                private int next;
+
+                @Override
+                public long run() {
+                    QueryOptimizer o = QueryOptimizer.forQuery(queries[next++ % QUERIES], model, null);
+                    o.optimize();
+                    statistics.setLength(0);
+                    try {
+                        o.appendFormattedStatistics(statistics);
+                    } catch (IOException exception) {
+                        throw new IllegalStateException(exception);
+                    }
+                    return statistics.length();
+                }
+            };
+        } else if (benchmark.equals("initializeSearchSpace")) {
+            return new Operation() {
+                private int next;
+
+                @Override
+                public long run() {
+                    return new PlanTable(queries[next++ % QUERIES], model).left.length;
+                }
+            };
+        } else if (benchmark.equals("searchSpace")) {
+            return new Operation() {
+                private int next;
+
+                @Override
+                public long run() {
+                    /* optimize exhaustively, without formatting the result */
+                    QueryOptimizer o = QueryOptimizer.forQuery(queries[next++ % QUERIES], model, null, k);
+                    o.optimize();
+                    return o.getPlan().bitmask;
+                }
+            };
+        } else if (benchmark.equals("format")) {
+            final QueryPlan[] plans = optimizeAll(queries);
+            return new Operation() {
+                private final StringBuilder statistics = new StringBuilder();
+                private int next;
+
+                @Override
+                public long run() {
+                    int i = next++ % QUERIES;
+                    statistics.setLength(0);
+                    try {
+                        QueryOptimizerUtils.appendStatistics(statistics, queries[i], plans[i]);
+                    } catch (IOException exception) {
+                        throw new IllegalStateException(exception);
+                    }
+                    return statistics.length();
+                }
+            };
+        } else if (benchmark.equals("heuristic")) {
+            return new Operation() {
+                private int next;
+
+                @Override
+                public long run() {
+                    return HeuristicOptimizer.optimize(queries[next++ % QUERIES], model).bitmask;
+                }
+            };
+        } else if (benchmark.equals("execute") || benchmark.equals("executeVector")
+                || benchmark.equals("executeParallel")) {
+            /* scan data generated for the first query, with the plan chosen for it */
+            final QueryPlan plan = optimizeAll(queries)[0];
+            final PlanExecutor executor = benchmark.equals("execute")
+                ? new PlanExecutor(plan) : PlanExecutor.forPlan(plan);
+            Random random = new Random(k);
+            final byte[][] tables = new byte[k][TABLE_SIZE];
+            final int[][] offsets = new int[k][records];
+            for (int n = 0; n < k; n++) {
+                for (int x = 0; x < TABLE_SIZE; x++) {
+                    tables[n][x] = (byte) (random.nextFloat() < queries[0][n] ? 1 : 0);
+                }
+                for (int i = 0; i < records; i++) {
+                    offsets[n][i] = random.nextInt(TABLE_SIZE);
+                }
+            }
+            if (benchmark.equals("executeParallel")) {
+                if (parallel == null) {
+                    parallel = new ParallelPlanExecutor(threads);
+                }
+                return new Operation() {
+                    @Override
+                    public long run() {
+                        return parallel.execute(plan, executor, tables, offsets).length;
+                    }
+                };
+            }
+            final int[] answer = new int[records];
+            return new Operation() {
+                @Override
+                public long run() {
+                    return executor.execute(tables, offsets, 0, records, answer, 0);
+                }
+            };
+        }
+        throw new IllegalArgumentException("unknown benchmark: " + benchmark);
+    }
+
+    /**
+     * @return the plan chosen for each query
+     */
+    private QueryPlan[] optimizeAll(Float[][] queries) {
+        QueryPlan[] plans = new QueryPlan[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            QueryOptimizer o = QueryOptimizer.forQuery(queries[i], model, null);
+            o.optimize();
+            plans[i] = o.getPlan();
+        }
+        return plans;
+    }
+
+    /**
+     * @return QUERIES queries with k conditions, with selectivities rounded to two decimals
+     * like those in query.txt
+     * @throws IllegalArgumentException if the distribution is unknown
+     */
+    private static Float[][] generateQueries(int k, String distribution, Random random) {
+        boolean skewed = distribution.equals("skewed");
+        if (!skewed && !distribution.equals("uniform")) {
+            throw new IllegalArgumentException("unknown distribution: " + distribution);
+        }
+        Float[][] queries = new Float[QUERIES][k];
+        for (Float[] query : queries) {
+            for (int n = 0; n < k; n++) {
+                float p = random.nextFloat();
+                if (skewed) {
+                    /* mostly very selective or barely selective conditions, 0.01 to 0.99 */
+                    float tail = 0.01f + 0.2f * p * p;
+                    p = random.nextBoolean() ? tail : 1 - tail;
+                }
+                query[n] = Math.round(p * 100) / 100f;
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Writes the results in the layout of JMH's JSON output.
+     */
+    private void writeJson(Writer out, List<Result> results) throws IOException {
+        out.write("[\n");
+        for (int r = 0; r < results.size(); r++) {
+            Result result = results.get(r);
+            out.write("    {\n");
+            out.write("        \"benchmark\" : \"OptimizerBenchmark." + result.benchmark + "\",\n");
+            out.write("        \"mode\" : \"avgt\",\n");
+            out.write("        \"threads\" : 1,\n");
+            out.write("        \"warmupIterations\" : " + warmup + ",\n");
+            out.write("        \"measurementIterations\" : " + iterations + ",\n");
+            out.write("        \"measurementTime\" : \"" + iterationNanos / 1000000 + " ms\",\n");
+            out.write("        \"params\" : {\n");
+            out.write("            \"k\" : \"" + result.k + "\",\n");
+            out.write("            \"distribution\" : \"" + result.distribution + "\"\n");
+            out.write("        },\n");
+            out.write("        \"primaryMetric\" : {\n");
+            out.write("            \"score\" : " + jsonNumber(result.score) + ",\n");
+            out.write("            \"scoreError\" : " + jsonNumber(result.error) + ",\n");
+            out.write("            \"scoreUnit\" : \"us/op\",\n");
+            out.write("            \"rawData\" : [\n                [");
+            for (int i = 0; i < result.scores.length; i++) {
+                out.write((i > 0 ? ", " : "") + jsonNumber(result.scores[i]));
+            }
+            out.write("]\n            ]\n");
+            out.write("        }\n");
+            out.write(r + 1 < results.size() ? "    },\n" : "    }\n");
+        }
+        out.write("]\n");
+    }
+
+    /**
+     * @return the number as a JSON value (JSON has no NaN)
+     */
+    private static String jsonNumber(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : Double.toString(value);
+    }
+}
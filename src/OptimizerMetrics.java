@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Totals of the counters and phase timings of every QueryOptimizer in the JVM, for
+ * finding out why queries are slow to optimize. Each optimization records:
+ * </p>
+ * <ul>
+ * <li>how its plan was found: by an exhaustive (or parallel) search, an incremental
+ * update, the cache or the heuristic</li>
+ * <li>the pairs of plans its search considered, how many of them Lemma 4.8 and Lemma
+ * 4.9 pruned, how many were costed instead, and how many of those replaced the best
+ * plan found so far</li>
+ * <li>the time spent setting up the search space, searching it, and building the plan
+ * tree</li>
+ * </ul>
+ * <p>
+ * The totals are exposed through JMX as QueryOptimizer:type=OptimizerMetrics, and each
+ * optimization is also committed as an OptimizationEvent to any JFR recording that
+ * enables it. Metrics are off unless the JVM is started with -Doptimizer.metrics=true or
+ * they are enabled through setEnabled or JMX. While they are off and no recording
+ * enables the event, an optimization pays for one check of each, and the pruning
+ * counters the search keeps anyway.
+ * </p>
+ */
+public final class OptimizerMetrics implements OptimizerMetricsMBean {
+    /** the totals of this JVM */
+    public static final OptimizerMetrics INSTANCE = new OptimizerMetrics();
+
+    /** name the totals are registered under with the platform MBean server */
+    public static final String OBJECT_NAME = "QueryOptimizer:type=OptimizerMetrics";
+
+    /** never committed; tells whether a recording enables the event */
+    private static final OptimizationEvent PROBE = new OptimizationEvent();
+
+    private static volatile boolean enabled;
+    private static boolean registered;
+
+    private final AtomicLong optimizations = new AtomicLong();
+    private final AtomicLong cachedPlans = new AtomicLong();
+    private final AtomicLong heuristicPlans = new AtomicLong();
+    private final AtomicLong exhaustiveSearches = new AtomicLong();
+    private final AtomicLong incrementalSearches = new AtomicLong();
+    private final AtomicLong pairsConsidered = new AtomicLong();
+    private final AtomicLong prunedByCMetric = new AtomicLong();
+    private final AtomicLong prunedByDMetric = new AtomicLong();
+    private final AtomicLong planReplacements = new AtomicLong();
+    private final AtomicLong setupNanos = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+    private final AtomicLong planNanos = new AtomicLong();
+
+    static {
+        if (Boolean.getBoolean("optimizer.metrics")) {
+            INSTANCE.setEnabled(true);
+        }
+    }
+
+    private OptimizerMetrics() {
+    }
+
+    /**
+     * @return true if optimizations should be timed and recorded, because metrics are on
+     * or a JFR recording enables OptimizationEvent
+     */
+    static boolean isRecording() {
+        return enabled || PROBE.isEnabled();
+    }
+
+    /**
+     * @return a started event for an optimization, or null if no recording enables it
+     */
+    static OptimizationEvent beginEvent() {
+        if (!PROBE.isEnabled()) {
+            return null;
+        }
+        OptimizationEvent event = new OptimizationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Adds a finished optimization to the totals, if metrics are on, and commits its event.
+     *
+     * @param event event started with beginEvent(), or null
+     */
+    static void record(OptimizationEvent event, int conditions, String source, long pairs, long byCMetric,
+            long byDMetric, long replacements, long setup, long search, long plan) {
+        if (enabled) {
+            INSTANCE.optimizations.incrementAndGet();
+            if (source.equals(QueryOptimizer.SOURCE_CACHE)) {
+                INSTANCE.cachedPlans.incrementAndGet();
+            } else if (source.equals(QueryOptimizer.SOURCE_HEURISTIC)) {
+                INSTANCE.heuristicPlans.incrementAndGet();
+            } else if (source.equals(QueryOptimizer.SOURCE_INCREMENTAL)) {
+                INSTANCE.incrementalSearches.incrementAndGet();
+            } else {
+                INSTANCE.exhaustiveSearches.incrementAndGet();
+            }
+            INSTANCE.pairsConsidered.addAndGet(pairs);
+            INSTANCE.prunedByCMetric.addAndGet(byCMetric);
+            INSTANCE.prunedByDMetric.addAndGet(byDMetric);
+            INSTANCE.planReplacements.addAndGet(replacements);
+            INSTANCE.setupNanos.addAndGet(setup);
+            INSTANCE.searchNanos.addAndGet(search);
+            INSTANCE.planNanos.addAndGet(plan);
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.conditions = conditions;
+                event.source = source;
+                event.pairsConsidered = pairs;
+                event.prunedByCMetric = byCMetric;
+                event.prunedByDMetric = byDMetric;
+                event.costEvaluations = pairs - byCMetric - byDMetric;
+                event.planReplacements = replacements;
+                event.setupNanos = setup;
+                event.searchNanos = search;
+                event.planNanos = plan;
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the totals on or off. The first time they are turned on, they are registered
+     * with the platform MBean server.
+     */
+    @Override
+    public void setEnabled(boolean on) {
+        if (on) {
+            register();
+        }
+        enabled = on;
+    }
+
+    private static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException exception) {
+            /* the totals are still available through INSTANCE */
+        }
+        registered = true;
+    }
+
+    @Override
+    public void reset() {
+        optimizations.set(0);
+        cachedPlans.set(0);
+        heuristicPlans.set(0);
+        exhaustiveSearches.set(0);
+        incrementalSearches.set(0);
+        pairsConsidered.set(0);
+        prunedByCMetric.set(0);
+        prunedByDMetric.set(0);
+        planReplacements.set(0);
+        setupNanos.set(0);
+        searchNanos.set(0);
+        planNanos.set(0);
+    }
+
+    @Override
+    public long getOptimizations() {
+        return optimizations.get();
+    }
+
+    @Override
+    public long getCachedPlans() {
+        return cachedPlans.get();
+    }
+
+    @Override
+    public long getHeuristicPlans() {
+        return heuristicPlans.get();
+    }
+
+    @Override
+    public long getExhaustiveSearches() {
+        return exhaustiveSearches.get();
+    }
+
+    @Override
+    public long getIncrementalSearches() {
+        return incrementalSearches.get();
+    }
+
+    @Override
+    public long getPairsConsidered() {
+        return pairsConsidered.get();
+    }
+
+    @Override
+    public long getPrunedByCMetric() {
+        return prunedByCMetric.get();
+    }
+
+    @Override
+    public long getPrunedByDMetric() {
+        return prunedByDMetric.get();
+    }
+
+    @Override
+    public long getCostEvaluations() {
+        return getPairsConsidered() - getPrunedByCMetric() - getPrunedByDMetric();
+    }
+
+    @Override
+    public long getPlanReplacements() {
+        return planReplacements.get();
+    }
+
+    @Override
+    public long getSetupNanos() {
+        return setupNanos.get();
+    }
+
+    @Override
+    public long getSearchNanos() {
+        return searchNanos.get();
+    }
+
+    @Override
+    public long getPlanNanos() {
+        return planNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("optimizations: %d (exhaustive %d, incremental %d, cached %d, heuristic %d)%n"
+                + "pairs considered: %d, pruned by Lemma 4.8: %d, by Lemma 4.9: %d, costed: %d, replacements: %d%n"
+                + "time (ms): setup %.3f, search %.3f, plan tree %.3f",
+                getOptimizations(), getExhaustiveSearches(), getIncrementalSearches(), getCachedPlans(),
+                getHeuristicPlans(), getPairsConsidered(), getPrunedByCMetric(), getPrunedByDMetric(),
+                getCostEvaluations(), getPlanReplacements(), getSetupNanos() / 1e6, getSearchNanos() / 1e6,
+                getPlanNanos() / 1e6);
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Management interface of OptimizerMetrics, as seen through JMX.
+ */
+public interface OptimizerMetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /** sets every counter back to 0 */
+    void reset();
+
+    long getOptimizations();
+
+    long getCachedPlans();
+
+    long getHeuristicPlans();
+
+    long getExhaustiveSearches();
+
+    long getIncrementalSearches();
+
+    long getPairsConsidered();
+
+    long getPrunedByCMetric();
+
+    long getPrunedByDMetric();
+
+    long getCostEvaluations();
+
+    long getPlanReplacements();
+
+    long getSetupNanos();
+
+    long getSearchNanos();
+
+    long getPlanNanos();
+}
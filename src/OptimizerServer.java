@@ -0,0 +1,420 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Resident optimizer that takes queries over a socket on the loopback interface, so
+ * that callers of stage2.sh do not pay for starting a JVM and warming up its JIT on
+ * every call. Each connection carries one request, made of lines of text:
+ * </p>
+ * <pre>
+ * d                    only answer as QueryOptimizer without options would (optional)
+ * c r = 1              a line of a config file (optional; the server's model otherwise)
+ * q 0.8 0.5 0.3 0.2    a line of a query file
+ * .                    end of the request
+ * </pre>
+ * <p>
+ * The server answers with what QueryOptimizer would print for the same query and config
+ * files and the server's own options, and closes the connection. A d line is answered
+ * right away with "ok" if the server runs with the optimizer's defaults, i.e. without a
+ * plan cache and with the default --max-exhaustive; otherwise with another line, and the
+ * connection is closed. stage2.sh sends its arguments to the server this way when one
+ * is running, and optimizes in a new JVM if the server declines.
+ * </p>
+ * <p>
+ * The queries of every connection go onto a single queue. A batcher thread takes
+ * whatever has been queued (waiting up to the batch delay after the first query for
+ * more to arrive) and optimizes the micro-batch on a pool of worker threads, split
+ * recursively like BatchOptimizer does, while the next batch queues up. The workers,
+ * and the plan cache if there is one, stay warm between requests.
+ * </p>
+ */
+public class OptimizerServer {
+    /** port the server listens on and stage2.sh connects to by default */
+    public static final int DEFAULT_PORT = 4711;
+
+    /** size of the plan cache if only --canonical or a plan store is given */
+    private static final long DEFAULT_CACHE_MB = 64;
+
+    /** most queries optimized in one batch */
+    private static final int MAX_BATCH = 1024;
+
+    private static final String USAGE =
+        "Usage: java OptimizerServer [options] [config.txt]\n"
+        + "    --port n               port to listen on, on the loopback interface (default "
+        + DEFAULT_PORT + ")\n"
+        + "    --threads n            optimize on n worker threads (default all processors)\n"
+        + "    --batch-us n           wait up to n microseconds for more queries to batch\n"
+        + "                           with the first one (default 0)\n"
+        + "    --cache-mb n           reuse plans of repeated queries, keeping up to n MB of plans\n"
+        + "    --canonical            share cached plans between queries whose selectivities only\n"
+        + "                           differ in order\n"
+        + "    --plan-store file      also keep the cached plans in file, and reuse the plans kept\n"
+        + "                           there by earlier runs (see PlanStore)\n"
+        + "    --max-exhaustive k     search exhaustively only for queries with at most k\n"
+        + "                           conditions (default " + QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS + ")";
+
+    private final CostModel model;
+    private final PlanCache cache;
+    private final int maxExhaustiveTerms;
+    /** true if the answers are those of QueryOptimizer without options */
+    private final boolean defaults;
+    private final long batchNanos;
+    private final ForkJoinPool pool;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+    private ServerSocket socket;
+
+    /**
+     * A query waiting to be optimized, and then for its statistics to be written out.
+     */
+    private static class Job {
+        final QueryOptimizer optimizer;
+        final CountDownLatch done = new CountDownLatch(1);
+        String statistics;
+        String error;
+
+        Job(QueryOptimizer optimizer) {
+            this.optimizer = optimizer;
+        }
+
+        void fail(Throwable throwable) {
+            error = message(throwable);
+            done.countDown();
+        }
+    }
+
+    /**
+     * @return the message to answer a failed query with
+     */
+    private static String message(Throwable throwable) {
+        if (throwable instanceof RuntimeException && throwable.getMessage() != null) {
+            return throwable.getMessage();
+        }
+        /* an Error, e.g. "java.lang.OutOfMemoryError: Java heap space" */
+        return throwable.toString();
+    }
+
+    /**
+     * @param model costs of the machine we are optimizing for, unless a request brings its own
+     * @param cache cache of finished plans shared by every request, or null
+     * @param threads number of worker threads to optimize queries on
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
+     * @param batchMicros how long to wait after the first query of a batch for more queries
+     */
+    public OptimizerServer(CostModel model, PlanCache cache, int threads, int maxExhaustiveTerms, long batchMicros) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.model = model;
+        this.cache = cache;
+        this.maxExhaustiveTerms = maxExhaustiveTerms;
+        /* compared as the optimizer applies them, e.g. every limit above PlanTable.MAX_TERMS is the same */
+        this.defaults = cache == null && QueryOptimizer.exhaustiveLimit(maxExhaustiveTerms)
+            == QueryOptimizer.exhaustiveLimit(QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS);
+        this.batchNanos = TimeUnit.MICROSECONDS.toNanos(batchMicros);
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port port to listen on, or 0 for any free port
+     * @return the port the server listens on
+     * @throws IOException if the port cannot be bound
+     */
+    public int bind(int port) throws IOException {
+        socket = new ServerSocket();
+        /* restarting the server should not wait for the connections of the last one to time out */
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Serves requests until the server is closed.
+     */
+    public void serve() {
+        Thread batcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBatches();
+            }
+        }, "OptimizerServer batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+        try {
+            while (true) {
+                final Socket connection = socket.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(connection);
+                    }
+                });
+            }
+        } catch (IOException exception) {
+            /* closed */
+        } finally {
+            batcher.interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting connections and stops the worker threads. Requests that are still
+     * queued are not answered.
+     */
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdown();
+        pool.shutdown();
+    }
+
+    /**
+     * Reads a request from the connection, queues its queries and writes out their
+     * statistics in order as they are done.
+     */
+    private void handle(Socket connection) {
+        try {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                Writer out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), "UTF-8"), 1 << 16);
+                try {
+                    answer(in, out);
+                } finally {
+                    out.flush();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (IOException exception) {
+            /* the client went away; nothing to answer */
+        }
+    }
+
+    /**
+     * Answers a single request, writing out any error message the way QueryOptimizer
+     * would.
+     */
+    private void answer(BufferedReader in, Writer out) throws IOException {
+        StringBuilder config = new StringBuilder();
+        StringBuilder queries = new StringBuilder();
+        for (String line = in.readLine(); line != null && !line.equals("."); line = in.readLine()) {
+            if (line.equals("d")) {
+                if (!defaults) {
+                    out.write("the server does not optimize with the default options\n");
+                    return;
+                }
+                /* the client waits for this before it sends the rest */
+                out.write("ok\n");
+                out.flush();
+            } else if (line.startsWith("c ")) {
+                config.append(line, 2, line.length()).append('\n');
+            } else if (line.startsWith("q ")) {
+                queries.append(line, 2, line.length()).append('\n');
+            } else if (!line.equals("c") && !line.equals("q")) {
+                out.write("invalid request line: " + line + "\n");
+                return;
+            }
+        }
+
+        /* read the whole request first, and fail like QueryOptimizer on a bad config or query */
+        List<Job> jobs = new ArrayList<Job>();
+        try {
+            CostModel requestModel = model;
+            if (config.length() > 0) {
+                Properties properties = new Properties();
+                properties.load(new StringReader(config.toString()));
+                requestModel = CostModel.fromProperties(properties);
+            }
+            QueryReader reader = new QueryReader(new ByteArrayInputStream(queries.toString().getBytes("UTF-8")));
+            for (Float[] selectivities = reader.next(); selectivities != null; selectivities = reader.next()) {
+                jobs.add(new Job(QueryOptimizer.forQuery(selectivities, requestModel, cache, maxExhaustiveTerms)));
+            }
+        } catch (IllegalArgumentException exception) {
+            out.write(exception.getMessage() + "\n");
+            return;
+        }
+
+        queue.addAll(jobs);
+        for (Job job : jobs) {
+            try {
+                job.done.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (job.error != null) {
+                out.write(job.error + "\n");
+                return;
+            }
+            out.write(job.statistics);
+        }
+    }
+
+    /**
+     * Optimizes the queued queries in micro-batches, until interrupted.
+     */
+    private void runBatches() {
+        List<Job> batch = new ArrayList<Job>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + batchNanos;
+                for (long wait = batchNanos; wait > 0 && batch.size() < MAX_BATCH; wait = deadline - System.nanoTime()) {
+                    Job next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                try {
+                    pool.invoke(new OptimizeJobs(batch, 0, batch.size()));
+                } catch (Throwable throwable) {
+                    /* the pool could not run the batch; fail what it did not answer and carry on */
+                    for (Job job : batch) {
+                        if (job.done.getCount() > 0) {
+                            job.fail(throwable);
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException exception) {
+            /* the server is closing */
+        }
+    }
+
+    /**
+     * Optimizes the jobs in [from, to) of a batch, splitting the range in half while it
+     * has more than one job.
+     */
+    private static class OptimizeJobs extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Job> batch;
+        private final int from;
+        private final int to;
+
+        OptimizeJobs(List<Job> batch, int from, int to) {
+            this.batch = batch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Job job = batch.get(from);
+                try {
+                    job.optimizer.optimize();
+                    job.statistics = job.optimizer.getFormattedStatistics();
+                } catch (Throwable throwable) {
+                    /*
+                     * a query with too many conditions, or one whose search space does not fit
+                     * in memory; either way only this query fails, not the batcher
+                     */
+                    job.error = message(throwable);
+                } finally {
+                    job.done.countDown();
+                }
+            } else if (to > from) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new OptimizeJobs(batch, from, mid), new OptimizeJobs(batch, mid, to));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long batchMicros = 0;
+        long cacheMb = DEFAULT_CACHE_MB;
+        /* whether --cache-mb was given, since giving it turns on the cache */
+        boolean cacheMbSet = false;
+        String planStore = null;
+        boolean canonical = false;
+        int maxExhaustiveTerms = QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS;
+        int arg = 0;
+        try {
+            for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+                String option = args[arg];
+                if (option.equals("--canonical")) {
+                    canonical = true;
+                    continue;
+                } else if (arg + 1 == args.length) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                String value = args[++arg];
+                if (option.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if (option.equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (option.equals("--batch-us")) {
+                    batchMicros = Long.parseLong(value);
+                } else if (option.equals("--cache-mb")) {
+                    cacheMb = Long.parseLong(value);
+                    cacheMbSet = true;
+                } else if (option.equals("--plan-store")) {
+                    planStore = value;
+                } else if (option.equals("--max-exhaustive")) {
+                    maxExhaustiveTerms = Integer.parseInt(value);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException exception) {
+            System.out.println(USAGE);
+            return;
+        }
+        if (args.length - arg > 1 || (arg < args.length && args[arg].startsWith("--")) || threads < 1
+                || batchMicros < 0 || cacheMb <= 0 || maxExhaustiveTerms < 0) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        OptimizerServer server;
+        try {
+            CostModel model = arg < args.length ? CostModel.load(new File(args[arg])) : CostModel.DEFAULT;
+            /* the plans are appended to the mapped file as they are found, so the store survives the server being killed */
+            PlanStore store = planStore != null ? new PlanStore(new File(planStore), 0) : null;
+            PlanCache cache = cacheMbSet || canonical || store != null
+                ? new PlanCache(cacheMb << 20, 0, canonical, store) : null;
+            server = new OptimizerServer(model, cache, threads, maxExhaustiveTerms, batchMicros);
+            port = server.bind(port);
+        } catch (IOException exception) {
+            System.out.println(exception.getMessage());
+            return;
+        } catch (IllegalArgumentException exception) {
+            System.out.println(exception.getMessage());
+            return;
+        }
+        System.err.println("listening on port " + port);
+        server.serve();
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Runs plans over in-memory data (see PlanExecutor), or the columns of a ColumnStore,
+ * on a pool of worker threads. The records are split into contiguous partitions, a few
+ * per worker so that workers which finish early can steal the partitions of slower
+ * ones, and every record is evaluated independently, so the partitions can be scanned
+ * in any order and on any thread.
+ * </p>
+ * <p>
+ * Each partition writes its answer into its own buffer, sized from the product of the
+ * selectivities of the plan and grown if the partition turns out to have more answers,
+ * so no two workers ever write to the same cache line. Partition boundaries are
+ * multiples of CACHE_LINE_INTS records, so workers do not share the cache lines of the
+ * offset arrays either. Once every partition is scanned, the buffers are copied into
+ * the answer in the order of the partitions, again in parallel, so the answer is the
+ * same as that of a single-threaded scan.
+ * </p>
+ * <p>
+ * Every partition is scanned by the same PlanExecutor, which is prepared for the data
+ * once per scan (see PlanExecutor.prepare), so per-call setup such as the int copies of
+ * a VectorPlanExecutor is shared by all of the partitions and blocks of the scan, and
+ * dropped with it.
+ * </p>
+ */
+public class ParallelPlanExecutor {
+    /** each worker is handed roughly this many partitions of the records */
+    private static final int PARTITIONS_PER_THREAD = 8;
+
+    /** records in the smallest partition worth handing to a worker */
+    private static final int MIN_PARTITION = 1 << 14;
+
+    /** ints in a 64-byte cache line */
+    private static final int CACHE_LINE_INTS = 16;
+
+    /** records scanned into a partition's buffer between checks that it has room */
+    private static final int BLOCK = 1 << 12;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads number of worker threads to scan on
+     */
+    public ParallelPlanExecutor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Evaluates the plan for every record, with the fastest PlanExecutor available (see
+     * PlanExecutor.forPlan).
+     *
+     * @param plan root of the plan tree to run
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(QueryPlan plan, byte[][] tables, int[][] offsets) {
+        return execute(plan, PlanExecutor.forPlan(plan), tables, offsets);
+    }
+
+    /**
+     * Evaluates the plan for every record with the given executor.
+     *
+     * @param plan root of the plan tree to run, whose selectivities size the buffers
+     * @param executor executor compiled from the plan
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(QueryPlan plan, PlanExecutor executor, byte[][] tables, int[][] offsets) {
+        int records = executor.checkData(tables, offsets);
+        /* e.g. widen the tables for a VectorPlanExecutor once, rather than in every partition */
+        Object prepared = executor.prepare(tables);
+        return execute(plan, executor, prepared, tables, offsets, null, records);
+    }
+
+    /**
+     * Evaluates the plan for every record of a column store, with the fastest
+     * PlanExecutor available (see PlanExecutor.forPlan).
+     *
+     * @param plan root of the plan tree to run
+     * @param store predicate tables and offset arrays of the selection conditions
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(QueryPlan plan, ColumnStore store) {
+        PlanExecutor executor = PlanExecutor.forPlan(plan);
+        return execute(plan, executor, null, null, null, store, executor.checkData(store));
+    }
+
+    /**
+     * Scans either the arrays or, if it is not null, the column store.
+     */
+    private int[] execute(QueryPlan plan, PlanExecutor executor, Object prepared, byte[][] tables,
+            int[][] offsets, ColumnStore store, int records) {
+        int wanted = Math.max(1, pool.getParallelism() * PARTITIONS_PER_THREAD);
+        int size = Math.max(MIN_PARTITION, (int) (((long) records + wanted - 1) / wanted));
+        size = (size + CACHE_LINE_INTS - 1) / CACHE_LINE_INTS * CACHE_LINE_INTS;
+        Scan[] scans = new Scan[(int) (((long) records + size - 1) / size)];
+        for (int n = 0; n < scans.length; n++) {
+            int from = n * size;
+            scans[n] = new Scan(executor, prepared, tables, offsets, store, from,
+                    (int) Math.min((long) from + size, records), plan.productOfSelectivities);
+        }
+        pool.invoke(new InvokeAll(scans));
+
+        /* merge the partitions in order */
+        Merge[] merges = new Merge[scans.length];
+        int position = 0;
+        for (int n = 0; n < scans.length; n++) {
+            merges[n] = new Merge(scans[n], position);
+            position += scans[n].count;
+        }
+        int[] answer = new int[position];
+        for (Merge merge : merges) {
+            merge.answer = answer;
+        }
+        pool.invoke(new InvokeAll(merges));
+        return answer;
+    }
+
+    /**
+     * Stops the worker threads once the scans in progress have finished.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Runs a set of independent tasks, so that idle workers can steal them.
+     */
+    private static class InvokeAll extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RecursiveAction[] tasks;
+
+        InvokeAll(RecursiveAction[] tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Scans the records in [from, to) into a buffer of its own.
+     */
+    private static class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PlanExecutor executor;
+        private final Object prepared;
+        private final byte[][] tables;
+        private final int[][] offsets;
+        private final ColumnStore store;
+        private final int from;
+        private final int to;
+        private final float selectivity;
+        int[] buffer;
+        int count;
+
+        Scan(PlanExecutor executor, Object prepared, byte[][] tables, int[][] offsets, ColumnStore store, int from,
+                int to, float selectivity) {
+            this.executor = executor;
+            this.prepared = prepared;
+            this.tables = tables;
+            this.offsets = offsets;
+            this.store = store;
+            this.from = from;
+            this.to = to;
+            this.selectivity = selectivity;
+        }
+
+        @Override
+        protected void compute() {
+            /* expected answers plus a few standard deviations, and room for one block */
+            double expected = (double) selectivity * (to - from);
+            int capacity = (int) Math.min(to - from, expected + 4 * Math.sqrt(expected) + BLOCK);
+            int[] answer = new int[capacity];
+            int j = 0;
+            for (int i = from; i < to; i += BLOCK) {
+                int end = Math.min(i + BLOCK, to);
+                /* the executor needs room for one index per record it scans */
+                if (answer.length - j < end - i) {
+                    answer = Arrays.copyOf(answer, (int) Math.min(to - from, Math.max(2L * answer.length, j + BLOCK)));
+                }
+                j = store == null ? executor.execute(prepared, tables, offsets, i, end, answer, j)
+                    : executor.execute(store, i, end, answer, j);
+            }
+            this.buffer = answer;
+            this.count = j;
+        }
+    }
+
+    /**
+     * Copies the answer of a partition into its place in the answer.
+     */
+    private static class Merge extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Scan scan;
+        private final int position;
+        int[] answer;
+
+        Merge(Scan scan, int position) {
+            this.scan = scan;
+            this.position = position;
+        }
+
+        @Override
+        protected void compute() {
+            System.arraycopy(scan.buffer, 0, answer, position, scan.count);
+            /* release the buffer as soon as we are done with it */
+            scan.buffer = null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Thread-safe, in-memory cache of finished plans, keyed by selectivities and CostModel
+ * (see PlanKey). When a QueryOptimizer with a cache finds its query in the cache, it
+ * uses the cached plan tree and cost and skips building and searching the search space
+ * altogether. Only plans found by an exhaustive search are cached, so a plan is the same
+ * whichever limit on exhaustive search (see QueryOptimizer) the optimizers use.
+ * </p>
+ * <p>
+ * The cache is bounded by an estimate of the memory held by its keys and plan trees.
+ * When an insertion takes it over the bound, the least recently used plans are evicted
+ * until it fits again. Hits, misses and evictions are counted.
+ * </p>
+ * <p>
+ * A cache can be backed by a PlanStore, in which case plans that are not in memory are
+ * looked up in the store, and every new plan is also appended to the store, so plans
+ * outlive the process.
+ * </p>
+ * <p>
+ * A canonical cache keys plans by the sorted selectivities of their queries (see
+ * PlanKey), so queries that only differ by the order of their conditions share a plan.
+ * The shared plan is the one found for the first of them, relabelled; it has the same
+ * cost, up to the rounding of the product of the selectivities, but where conditions
+ * have equal selectivities it may break the tie between equally good plans differently
+ * than optimizing the query itself would.
+ * </p>
+ */
+public class PlanCache {
+    /** approximate size of a QueryPlan object on a 64-bit JVM with compressed oops */
+    private static final int PLAN_BYTES = 56;
+    /** approximate size of a map entry with its key (excluding the selectivities) */
+    private static final int ENTRY_BYTES = 96;
+
+    private final long maxBytes;
+    private final float precision;
+    private final boolean canonical;
+    private final LinkedHashMap<PlanKey, QueryPlan> plans;
+    private final PlanStore store;
+    private long bytes;
+    private long hits;
+    private long storeHits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes approximate upper bound on the memory held by the cache
+     * @param precision selectivities are rounded to a multiple of this value before lookup
+     * (0 to only share plans between queries with exactly the same selectivities)
+     */
+    public PlanCache(long maxBytes, float precision) {
+        this(maxBytes, precision, null);
+    }
+
+    /**
+     * @param maxBytes approximate upper bound on the memory held by the cache
+     * @param precision selectivities are rounded to a multiple of this value before lookup
+     * (0 to only share plans between queries with exactly the same selectivities)
+     * @param store persistent store backing the cache, opened with the same precision, or null
+     */
+    public PlanCache(long maxBytes, float precision, PlanStore store) {
+        this(maxBytes, precision, false, store);
+    }
+
+    /**
+     * @param maxBytes approximate upper bound on the memory held by the cache
+     * @param precision selectivities are rounded to a multiple of this value before lookup
+     * (0 to only share plans between queries with exactly the same selectivities)
+     * @param canonical true to also share plans between queries whose selectivities only
+     * differ in order
+     * @param store persistent store backing the cache, opened with the same precision, or null
+     */
+    public PlanCache(long maxBytes, float precision, boolean canonical, PlanStore store) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("cache size must be positive: " + maxBytes);
+        }
+        if (!(precision >= 0)) {
+            throw new IllegalArgumentException("invalid precision: " + precision);
+        }
+        this.maxBytes = maxBytes;
+        this.precision = precision;
+        this.canonical = canonical;
+        if (store != null && Float.compare(store.getPrecision(), precision) != 0) {
+            throw new IllegalArgumentException("plan store has a precision of " + store.getPrecision());
+        }
+        this.plans = new LinkedHashMap<PlanKey, QueryPlan>(16, 0.75f, true);
+        this.store = store;
+    }
+
+    /**
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     * @return the key the plan for the query is cached under
+     */
+    PlanKey keyOf(Float[] selectivities, CostModel model) {
+        return new PlanKey(selectivities, model, precision, canonical);
+    }
+
+    /**
+     * @param key key of the query
+     * @return the cached plan tree for the query, or null if it is not cached
+     */
+    synchronized QueryPlan get(PlanKey key) {
+        QueryPlan plan = plans.get(key);
+        if (plan == null && store != null) {
+            plan = store.get(key);
+            if (plan != null) {
+                storeHits++;
+                remember(key, plan);
+            }
+        }
+        if (plan == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return key.fromCanonical(plan);
+    }
+
+    /**
+     * Caches the plan tree for the query, evicting least recently used plans if needed.
+     *
+     * @param key key of the query
+     * @param plan root of the finished plan tree for the query
+     */
+    synchronized void put(PlanKey key, QueryPlan plan) {
+        plan = key.toCanonical(plan);
+        remember(key, plan);
+        if (store != null) {
+            store.put(key, plan);
+        }
+    }
+
+    /**
+     * Keeps the plan tree in memory, evicting least recently used plans if needed.
+     */
+    private void remember(PlanKey key, QueryPlan plan) {
+        QueryPlan previous = plans.put(key, plan);
+        if (previous != null) {
+            bytes -= weigh(key, previous);
+        }
+        bytes += weigh(key, plan);
+
+        Iterator<Map.Entry<PlanKey, QueryPlan>> eldest = plans.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<PlanKey, QueryPlan> entry = eldest.next();
+            bytes -= weigh(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return number of plans currently in the cache
+     */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /**
+     * @return approximate memory held by the cached keys and plans, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of hits served from the PlanStore rather than from memory
+     */
+    public synchronized long getStoreHits() {
+        return storeHits;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "plan cache: " + plans.size() + " plans, " + bytes + " bytes, " + hits + " hits, "
+            + misses + " misses, " + evictions + " evictions"
+            + (store == null ? "" : ", " + storeHits + " hits from " + store.size() + " stored plans");
+    }
+
+    /**
+     * @return approximate memory held by the entry for the key and plan, in bytes
+     */
+    private static long weigh(PlanKey key, QueryPlan plan) {
+        /* a plan over k conditions has at most 2k - 1 nodes */
+        int k = key.selectivities.length;
+        return ENTRY_BYTES + 4L * k + PLAN_BYTES * Math.max(1, 2L * k - 1);
+    }
+}
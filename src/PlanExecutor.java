@@ -0,0 +1,252 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>
+ * Runs a plan chosen by the optimizer over in-memory data, instead of printing it out as
+ * C code. The data has the layout used by template/branch_mispred.c: the i-th record
+ * satisfies the selection condition f_n if t_n[o_n[i]] is 1 (and not if it is 0), where
+ * t_n is the predicate table and o_n the offset array of f_n.
+ * </p>
+ * <p>
+ * The plan is compiled once into its list of &-terms, and every record is then
+ * evaluated exactly as the printed code would be: the conditions within an &-term are
+ * combined with a logical-and (&), without branching, the &-terms are combined with
+ * branching-ands (&&), and if the plan ends in a no-branch &-term, that term is added to
+ * the answer index instead of being tested:
+ * </p>
+ * <pre>
+ * for(i = 0; i < number_of_records; i++) {
+ *     if((t1[o1[i]] & t2[o2[i]]) && t3[o3[i]]) {
+ *         answer[j] = i;
+ *         j += (t4[o4[i]] & t5[o5[i]]);
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * A PlanExecutor holds no per-scan state, so a single instance can run scans on
+ * several threads at once. Plans can also run over the memory-mapped columns of a
+ * ColumnStore. forPlan(plan) returns a VectorPlanExecutor instead, which evaluates
+ * several records at once with SIMD instructions, if the Vector API is available.
+ * </p>
+ */
+public class PlanExecutor {
+    /** conditions (0-based) of each &-term, in the order they are evaluated */
+    final int[][] terms;
+    /** true if the last &-term is evaluated with the no-branch algorithm */
+    final boolean noBranch;
+    /** number of selection conditions the plan refers to */
+    private final int k;
+
+    /**
+     * @param plan root of the plan tree to run
+     */
+    public PlanExecutor(QueryPlan plan) {
+        List<QueryPlan> leaves = plan.getLeaves();
+        this.terms = new int[leaves.size()][];
+        int highest = 0;
+        for (int i = 0; i < terms.length; i++) {
+            long bitmask = leaves.get(i).bitmask;
+            terms[i] = new int[Long.bitCount(bitmask)];
+            int n = 0;
+            for (long atoms = bitmask; atoms != 0; atoms &= atoms - 1) {
+                terms[i][n++] = Long.numberOfTrailingZeros(atoms);
+            }
+            highest = Math.max(highest, 64 - Long.numberOfLeadingZeros(bitmask));
+        }
+        /* the root's flag decides how the last &-term is printed, so it decides how it runs */
+        this.noBranch = plan.noBranchFlag;
+        this.k = highest;
+    }
+
+    /**
+     * @param plan root of the plan tree to run
+     * @return a VectorPlanExecutor for the plan if the JVM was started with
+     * --add-modules jdk.incubator.vector, or else a (scalar) PlanExecutor
+     */
+    public static PlanExecutor forPlan(QueryPlan plan) {
+        try {
+            return (PlanExecutor) Class.forName("VectorPlanExecutor")
+                .getDeclaredConstructor(QueryPlan.class).newInstance(plan);
+        } catch (ReflectiveOperationException exception) {
+            /* not compiled */
+        } catch (LinkageError error) {
+            /* compiled, but the Vector API module is not present */
+        }
+        return new PlanExecutor(plan);
+    }
+
+    /**
+     * Evaluates the plan for every record.
+     *
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(byte[][] tables, int[][] offsets) {
+        int records = checkData(tables, offsets);
+        int[] answer = new int[records];
+        int j = execute(tables, offsets, 0, records, answer, 0);
+        return Arrays.copyOf(answer, j);
+    }
+
+    /**
+     * Evaluates the plan for the records in [from, to), writing the indices of the records
+     * that satisfy every selection condition into the answer array starting at j. Like the
+     * C code, a no-branch plan may also write the index of a rejected record at answer[j],
+     * so the answer array must have room for one index per record scanned.
+     *
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @param from index of the first record to evaluate
+     * @param to index after the last record to evaluate
+     * @param answer destination of the answer indices
+     * @param j position in the answer array of the first answer
+     * @return position in the answer array after the last answer
+     */
+    public int execute(byte[][] tables, int[][] offsets, int from, int to, int[] answer, int j) {
+        int branchTerms = noBranch ? terms.length - 1 : terms.length;
+        int[] last = terms[terms.length - 1];
+        records:
+        for (int i = from; i < to; i++) {
+            /* && between the &-terms */
+            for (int n = 0; n < branchTerms; n++) {
+                int[] term = terms[n];
+                int pass = 1;
+                for (int atom : term) {
+                    /* & within the &-term */
+                    pass &= tables[atom][offsets[atom][i]];
+                }
+                if (pass == 0) {
+                    continue records;
+                }
+            }
+            if (noBranch) {
+                int pass = 1;
+                for (int atom : last) {
+                    pass &= tables[atom][offsets[atom][i]];
+                }
+                answer[j] = i;
+                j += pass;
+            } else {
+                answer[j++] = i;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * Evaluates the plan for every record of a column store, reading the mapped columns
+     * directly.
+     *
+     * @param store predicate tables and offset arrays of the selection conditions
+     * @return indices of the records that satisfy every selection condition, in ascending
+     * order
+     */
+    public int[] execute(ColumnStore store) {
+        checkData(store);
+        int[] answer = new int[store.getRecords()];
+        int j = execute(store, 0, store.getRecords(), answer, 0);
+        return Arrays.copyOf(answer, j);
+    }
+
+    /**
+     * Evaluates the plan for the records in [from, to) of a column store, like
+     * execute(tables, offsets, from, to, answer, j).
+     *
+     * @param store predicate tables and offset arrays of the selection conditions
+     * @param from index of the first record to evaluate
+     * @param to index after the last record to evaluate
+     * @param answer destination of the answer indices
+     * @param j position in the answer array of the first answer
+     * @return position in the answer array after the last answer
+     */
+    public int execute(ColumnStore store, int from, int to, int[] answer, int j) {
+        ByteBuffer[] tables = store.tables;
+        IntBuffer[] offsets = store.offsets;
+        int branchTerms = noBranch ? terms.length - 1 : terms.length;
+        int[] last = terms[terms.length - 1];
+        records:
+        for (int i = from; i < to; i++) {
+            /* && between the &-terms */
+            for (int n = 0; n < branchTerms; n++) {
+                int[] term = terms[n];
+                int pass = 1;
+                for (int atom : term) {
+                    /* & within the &-term */
+                    pass &= tables[atom].get(offsets[atom].get(i));
+                }
+                if (pass == 0) {
+                    continue records;
+                }
+            }
+            if (noBranch) {
+                int pass = 1;
+                for (int atom : last) {
+                    pass &= tables[atom].get(offsets[atom].get(i));
+                }
+                answer[j] = i;
+                j += pass;
+            } else {
+                answer[j++] = i;
+            }
+        }
+        return j;
+    }
+
+    /**
+     * Prepares a scan of the tables, so that the calls of execute(prepared, ...) for ranges
+     * of its records, e.g. from several threads, do not each pay for it. What it returns
+     * is only good for that scan, since the tables may be updated between scans.
+     *
+     * @return what the calls of the scan pass back to execute; null here
+     */
+    Object prepare(byte[][] tables) {
+        return null;
+    }
+
+    /**
+     * Same as execute(tables, offsets, from, to, answer, j), for a range of a scan.
+     *
+     * @param prepared what prepare(tables) returned for the scan
+     */
+    int execute(Object prepared, byte[][] tables, int[][] offsets, int from, int to, int[] answer, int j) {
+        return execute(tables, offsets, from, to, answer, j);
+    }
+
+    /**
+     * @return number of records in the data
+     * @throws IllegalArgumentException if the data does not cover every condition of the
+     * plan, or the offset arrays differ in length
+     */
+    int checkData(byte[][] tables, int[][] offsets) {
+        if (tables.length < k || offsets.length < k) {
+            throw new IllegalArgumentException("plan refers to " + k + " selection conditions, but "
+                    + tables.length + " tables and " + offsets.length + " offset arrays were given");
+        }
+        int records = offsets[0].length;
+        for (int n = 1; n < k; n++) {
+            if (offsets[n].length != records) {
+                throw new IllegalArgumentException("offset array o" + (n + 1) + " has " + offsets[n].length
+                        + " entries instead of " + records);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return number of records in the store
+     * @throws IllegalArgumentException if the store does not cover every condition of the
+     * plan
+     */
+    int checkData(ColumnStore store) {
+        if (store.getConditions() < k) {
+            throw new IllegalArgumentException("plan refers to " + k + " selection conditions, but the store has "
+                    + store.getConditions());
+        }
+        return store.getRecords();
+    }
+}
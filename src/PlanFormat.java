@@ -0,0 +1,90 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Compact binary encoding of a finished plan tree, which can be stored and turned back
+ * into the same QueryPlan tree without re-optimizing or parsing text. The nodes are
+ * written in pre-order, each as:
+ * </p>
+ * <pre>
+ * byte   flags: HAS_CHILDREN if the node is an && of a left and a right child,
+ *        NO_BRANCH if its noBranchFlag is set
+ * float  cost
+ * float  product of the selectivities of its conditions
+ * long   bitmask of its conditions, for leaves (&-terms) only
+ * </pre>
+ * <p>
+ * followed by its left and right children, if any. The bitmask of an inner node is the
+ * union of those of its children, so it is not written. A plan over k conditions has at
+ * most k leaves, so it takes at most 26k - 9 bytes.
+ * </p>
+ */
+final class PlanFormat {
+    private static final int HAS_CHILDREN = 1;
+    private static final int NO_BRANCH = 2;
+
+    /** bytes of a node without its bitmask */
+    private static final int NODE_BYTES = 1 + 4 + 4;
+
+    private PlanFormat() {
+    }
+
+    /**
+     * @return number of bytes encode(plan, ...) writes
+     */
+    static int encodedSize(QueryPlan plan) {
+        if (plan.left != null && plan.right != null) {
+            return NODE_BYTES + encodedSize(plan.left) + encodedSize(plan.right);
+        }
+        return NODE_BYTES + 8;
+    }
+
+    /**
+     * Writes the plan tree at the position of the buffer, advancing it.
+     */
+    static void encode(QueryPlan plan, ByteBuffer out) {
+        boolean inner = plan.left != null && plan.right != null;
+        out.put((byte) ((inner ? HAS_CHILDREN : 0) | (plan.noBranchFlag ? NO_BRANCH : 0)));
+        out.putFloat(plan.cost);
+        out.putFloat(plan.productOfSelectivities);
+        if (inner) {
+            encode(plan.left, out);
+            encode(plan.right, out);
+        } else {
+            out.putLong(plan.bitmask);
+        }
+    }
+
+    /**
+     * Reads a plan tree from the position of the buffer, advancing it.
+     *
+     * @param in buffer holding a plan written by encode
+     * @param model costs of the machine the plan was optimized for
+     * @return root of the plan tree
+     * @throws IllegalArgumentException if the buffer does not hold a valid plan
+     */
+    static QueryPlan decode(ByteBuffer in, CostModel model) {
+        try {
+            int flags = in.get();
+            float cost = in.getFloat();
+            float product = in.getFloat();
+            if ((flags & HAS_CHILDREN) == 0) {
+                long bitmask = in.getLong();
+                return new QueryPlan(bitmask, Long.bitCount(bitmask), product, (flags & NO_BRANCH) != 0, cost, model);
+            }
+            QueryPlan left = decode(in, model);
+            QueryPlan right = decode(in, model);
+            if ((left.bitmask & right.bitmask) != 0) {
+                throw new IllegalArgumentException("children of a plan share conditions");
+            }
+            long bitmask = left.bitmask | right.bitmask;
+            QueryPlan plan = new QueryPlan(bitmask, Long.bitCount(bitmask), product, (flags & NO_BRANCH) != 0, cost,
+                    model);
+            plan.setChildren(left, right);
+            return plan;
+        } catch (BufferUnderflowException exception) {
+            throw new IllegalArgumentException("truncated plan");
+        }
+    }
+}
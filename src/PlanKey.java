@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Identifies the plan chosen for a query: the selectivities of its selection conditions
+ * and the CostModel of the machine it was optimized for. Selectivities can optionally be
+ * quantized to a fixed precision, so that queries whose selectivities only differ by
+ * estimation noise share a key (and therefore a plan).
+ * </p>
+ * <p>
+ * With a precision of 0 the key holds the exact bits of each selectivity.
+ * </p>
+ * <p>
+ * A canonical key holds the selectivities sorted in ascending order, so that queries
+ * which only differ by the order of their conditions share a key. The plan of such a
+ * query is the plan of the sorted query with its conditions relabelled, so plans are
+ * cached in the order of the key, and toCanonical and fromCanonical translate them to
+ * and from the order of the query.
+ * </p>
+ */
+final class PlanKey {
+    /** quantized selectivities, or their exact float bits if precision is 0 */
+    final int[] selectivities;
+    final CostModel model;
+    /** canonical position of each condition of the query, or null if they are in order */
+    private final int[] positions;
+    private final int hash;
+
+    /**
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     * @param precision selectivities are rounded to a multiple of this value (0 for exact keys)
+     */
+    PlanKey(Float[] selectivities, CostModel model, float precision) {
+        this(selectivities, model, precision, false);
+    }
+
+    /**
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     * @param precision selectivities are rounded to a multiple of this value (0 for exact keys)
+     * @param canonical true to sort the selectivities, so the key does not depend on the
+     * order of the conditions
+     */
+    PlanKey(Float[] selectivities, CostModel model, float precision, boolean canonical) {
+        int[] values = new int[selectivities.length];
+        for (int i = 0; i < selectivities.length; i++) {
+            values[i] = precision > 0
+                ? Math.round(selectivities[i] / precision)
+                : Float.floatToIntBits(selectivities[i]);
+        }
+        this.positions = canonical ? sortedPositions(values) : null;
+        if (positions != null) {
+            this.selectivities = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                this.selectivities[positions[i]] = values[i];
+            }
+        } else {
+            this.selectivities = values;
+        }
+        this.model = model;
+        this.hash = 31 * Arrays.hashCode(this.selectivities) + model.hashCode();
+    }
+
+    /**
+     * @param selectivities quantized selectivities, or their exact float bits, as kept by a key
+     * @param model costs of the machine we are optimizing for
+     */
+    PlanKey(int[] selectivities, CostModel model) {
+        this.selectivities = selectivities;
+        this.model = model;
+        this.positions = null;
+        this.hash = 31 * Arrays.hashCode(selectivities) + model.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PlanKey)) {
+            return false;
+        }
+        PlanKey key = (PlanKey) o;
+        return hash == key.hash && Arrays.equals(selectivities, key.selectivities) && model.equals(key.model);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @param plan plan tree over the conditions of the query, in the order of the query
+     * @return the same plan tree over the conditions in the order of the key
+     */
+    QueryPlan toCanonical(QueryPlan plan) {
+        return positions == null ? plan : relabel(plan, positions);
+    }
+
+    /**
+     * @param plan plan tree over the conditions in the order of the key
+     * @return the same plan tree over the conditions of the query, in the order of the query
+     */
+    QueryPlan fromCanonical(QueryPlan plan) {
+        if (positions == null) {
+            return plan;
+        }
+        int[] conditions = new int[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            conditions[positions[i]] = i;
+        }
+        return relabel(plan, conditions);
+    }
+
+    /**
+     * @return the position of each value in the values sorted in ascending order, keeping
+     * equal values in their order, or null if the values are sorted already
+     */
+    private static int[] sortedPositions(int[] values) {
+        /* the quantized selectivities and float bits of selectivities in [0, 1] sort like the selectivities */
+        int[] positions = new int[values.length];
+        boolean sorted = true;
+        for (int i = 0; i < values.length; i++) {
+            for (int j = 0; j < values.length; j++) {
+                if (values[j] < values[i] || (values[j] == values[i] && j < i)) {
+                    positions[i]++;
+                }
+            }
+            sorted &= positions[i] == i;
+        }
+        return sorted ? null : positions;
+    }
+
+    /**
+     * @return a copy of the plan tree in which condition i is condition map[i]
+     */
+    private static QueryPlan relabel(QueryPlan plan, int[] map) {
+        long bitmask = 0;
+        for (long bits = plan.bitmask; bits != 0; bits &= bits - 1) {
+            bitmask |= 1L << map[Long.numberOfTrailingZeros(bits)];
+        }
+        QueryPlan copy = new QueryPlan(bitmask, plan.k, plan.productOfSelectivities, plan.noBranchFlag, plan.cost,
+                plan.model);
+        if (plan.left != null && plan.right != null) {
+            copy.setChildren(relabel(plan.left, map), relabel(plan.right, map));
+        }
+        return copy;
+    }
+}
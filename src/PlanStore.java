@@ -0,0 +1,255 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Append-only file of finished plans, keyed like the PlanCache by the (possibly
+ * quantized) selectivities of a query and the CostModel it was optimized for, so plans
+ * survive the process that found them. A PlanCache backed by a store looks up the plans
+ * it does not hold in the store, and appends every new plan to it, so a restarted
+ * optimizer serves every query it has seen before without searching.
+ * </p>
+ * <p>
+ * The file is memory-mapped. Opening it scans the keys of its records into an index,
+ * but leaves the plans where they are; a plan is only decoded (see PlanFormat) when it
+ * is looked up. The file is laid out as:
+ * </p>
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * float  precision of the keys (see PlanKey)
+ * int    end of the last complete record
+ * records, each:
+ *     int    length of the record in bytes
+ *     int    k
+ *     int[k] selectivities of the key
+ *     float  r, t, l, m, a, f of the cost model
+ *     plan tree, in the PlanFormat encoding
+ * </pre>
+ * <p>
+ * A record is written in full before the end in the header is moved past it, so a
+ * store that was not closed properly still opens, without its last record at worst.
+ * The mapping grows by doubling as records are appended, up to 2 GB. Once the store is
+ * full, or the file cannot be grown, it warns once and stops appending; the plans it
+ * already holds are still served, and the PlanCache keeps new plans in memory.
+ * </p>
+ */
+public class PlanStore implements Closeable {
+    private static final int MAGIC = 0x504c4e53;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int END_OFFSET = 12;
+
+    /** size of the mapping of a new store */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    private final RandomAccessFile file;
+    private final float precision;
+    /** largest end of the records the store may grow to */
+    private final int maxEnd;
+    private final Map<PlanKey, Integer> index = new HashMap<PlanKey, Integer>();
+    private MappedByteBuffer buffer;
+    private int end;
+    /** true once an append did not fit, after which nothing more is appended */
+    private boolean full;
+
+    /**
+     * Opens the store in the file, creating the file if it does not exist.
+     *
+     * @param file file holding the store
+     * @param precision precision of the keys of the PlanCache the store backs (see
+     * PlanKey); a store can only be opened with the precision it was created with
+     * @throws IOException if the file cannot be read or is not a plan store
+     * @throws IllegalArgumentException if the store was created with another precision
+     */
+    public PlanStore(File file, float precision) throws IOException {
+        this(file, precision, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Opens the store in the file, creating the file if it does not exist.
+     *
+     * @param maxBytes size the records of the store may grow to, including its header
+     */
+    PlanStore(File file, float precision, int maxBytes) throws IOException {
+        this.maxEnd = maxBytes;
+        this.file = new RandomAccessFile(file, "rw");
+        try {
+            if (this.file.length() == 0) {
+                map(INITIAL_CAPACITY);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putFloat(8, precision);
+                buffer.putInt(END_OFFSET, HEADER_BYTES);
+            } else {
+                if (this.file.length() < HEADER_BYTES || this.file.length() > Integer.MAX_VALUE) {
+                    throw new IOException(file + " is not a plan store");
+                }
+                map((int) this.file.length());
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a plan store");
+            }
+            if (Float.compare(buffer.getFloat(8), precision) != 0) {
+                throw new IllegalArgumentException(file + " holds plans for a cache precision of "
+                        + buffer.getFloat(8));
+            }
+            this.precision = precision;
+            this.end = buffer.getInt(END_OFFSET);
+            readIndex();
+        } catch (IOException exception) {
+            this.file.close();
+            throw exception;
+        } catch (RuntimeException exception) {
+            this.file.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * @return precision of the keys of the plans in the store
+     */
+    public float getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return number of plans in the store
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return true if the store stopped appending plans, because it is full or its file
+     * cannot be grown
+     */
+    public synchronized boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @param key key of the query
+     * @return the stored plan tree for the query, or null if it is not stored
+     */
+    synchronized QueryPlan get(PlanKey key) {
+        Integer offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        return PlanFormat.decode(in, key.model);
+    }
+
+    /**
+     * Appends the plan tree for the query, unless the store already has a plan for it or
+     * is full.
+     *
+     * @param key key of the query
+     * @param plan root of the finished plan tree for the query
+     */
+    synchronized void put(PlanKey key, QueryPlan plan) {
+        if (full || index.containsKey(key)) {
+            return;
+        }
+        int k = key.selectivities.length;
+        long length = 4 + 4 + 4L * k + 6 * 4 + PlanFormat.encodedSize(plan);
+        if ((long) end + length > maxEnd) {
+            stopAppending("plan store is full");
+            return;
+        }
+        if (end + length > buffer.capacity()) {
+            try {
+                map((int) Math.min(maxEnd, Math.max(2L * buffer.capacity(), end + length)));
+            } catch (IOException exception) {
+                stopAppending("cannot grow plan store: " + exception.getMessage());
+                return;
+            }
+        }
+        ByteBuffer out = buffer.duplicate();
+        out.position(end);
+        out.putInt((int) length);
+        out.putInt(k);
+        for (int selectivity : key.selectivities) {
+            out.putInt(selectivity);
+        }
+        CostModel model = key.model;
+        out.putFloat(model.getR());
+        out.putFloat(model.getT());
+        out.putFloat(model.getL());
+        out.putFloat(model.getM());
+        out.putFloat(model.getA());
+        out.putFloat(model.getF());
+        int offset = out.position();
+        PlanFormat.encode(plan, out);
+
+        /* only now is the record part of the store */
+        end = out.position();
+        buffer.putInt(END_OFFSET, end);
+        index.put(key, offset);
+    }
+
+    /**
+     * Warns, once, that no more plans are appended.
+     */
+    private void stopAppending(String reason) {
+        full = true;
+        System.err.println(reason + "; new plans are only cached in memory");
+    }
+
+    /**
+     * Writes the appended plans through to the disk.
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+
+    /**
+     * Scans the keys of the records into the index.
+     */
+    private void readIndex() throws IOException {
+        if (end < HEADER_BYTES || end > buffer.capacity()) {
+            throw new IOException("plan store is corrupt: end of records at " + end);
+        }
+        for (int record = HEADER_BYTES; record < end; record += buffer.getInt(record)) {
+            int length = buffer.getInt(record);
+            if (length < 32 || length > end - record) {
+                throw new IOException("plan store is corrupt: bad record at " + record);
+            }
+            int k = buffer.getInt(record + 4);
+            if (k < 0 || k > (length - 32) / 4) {
+                throw new IOException("plan store is corrupt: bad record at " + record);
+            }
+            int[] selectivities = new int[k];
+            for (int i = 0; i < k; i++) {
+                selectivities[i] = buffer.getInt(record + 8 + 4 * i);
+            }
+            int model = record + 8 + 4 * k;
+            CostModel costModel = new CostModel(buffer.getFloat(model), buffer.getFloat(model + 4),
+                    buffer.getFloat(model + 8), buffer.getFloat(model + 12), buffer.getFloat(model + 16),
+                    buffer.getFloat(model + 20));
+            index.put(new PlanKey(selectivities, costModel), model + 24);
+        }
+    }
+
+    /**
+     * Maps the first size bytes of the file, growing it if necessary.
+     */
+    private void map(int size) throws IOException {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+}
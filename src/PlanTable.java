@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Compact representation of the search space of Algorithm 4.11. Rather than keeping a
+ * QueryPlan object for each of the 2^k - 1 nonempty subsets of the selection conditions,
+ * the table keeps one entry per subset in a set of parallel primitive arrays, indexed
+ * directly by the bitmask of the subset (index 0, the empty set, is unused).
+ * </p>
+ * <p>
+ * Each subset costs 4 bytes of cost, 4 bytes of selectivity product, 4 bytes of left
+ * child bitmask, 4 bytes of left-most leaf bitmask and 1 bit of no-branch flag, or 16.13
+ * bytes in total as measured at k = 20. A search space of QueryPlan objects measured
+ * 52 bytes per subset (a 48-byte object and a 4-byte array slot) with compressed
+ * references, and 64 bytes without them, as on heaps of 32 GB or more, so the table is
+ * 3.2 to 4 times smaller rather than the 5 times that was aimed for. The product and
+ * the left-most leaf are read for every pair the search considers; deriving them
+ * instead would put work back into the inner loop, and recomputing the product would
+ * change its rounding and so the plans chosen. The fixed cost of an &-term (its
+ * d-metric) only depends on its number of conditions, so it is kept in a table indexed
+ * by that number instead of per subset. The left-most leaf of each plan is recorded once
+ * its plan is final (see setLeftMostTerm), so the Lemma 4.8 and 4.9 checks never walk
+ * down a plan. QueryPlan objects are only built, by toPlan(s), for the final plan tree
+ * when it is formatted.
+ * </p>
+ */
+class PlanTable {
+    /** largest number of selection conditions whose subsets can be indexed by an int */
+    static final int MAX_TERMS = 30;
+
+    /** number of selection conditions */
+    int k;
+    /** A[s].c: cost of the best plan found so far for the subset s */
+    float[] cost;
+    /** product of the selectivities of the conditions in s */
+    float[] productOfSelectivities;
+    /** bitmask of the left child of the best plan for s, or 0 if the plan is a single &-term */
+    int[] left;
+    /** bitmask of the left-most leaf of the best plan for s, once that plan is final */
+    int[] leftMost;
+    /** A[s].b: bit s is set if the &-term for s is cheaper with the no-branch algorithm */
+    long[] noBranch;
+    /** fixed cost of an &-term, indexed by its number of conditions */
+    float[] fixedCost;
+    /** cost of an &-term evaluated with the no-branch algorithm, indexed by its number of conditions */
+    private float[] noBranchCost;
+    /** costs of the machine we are optimizing for */
+    final CostModel model;
+
+    /**
+     * <p>
+     * Step (1) of Algorithm 4.11
+     * </p>
+     * <p>
+     * Allocates the table and fills in the &-term plan for every nonempty subset of the
+     * selection conditions, choosing the no-branch algorithm where it is cheaper.
+     * </p>
+     *
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
+     */
+    PlanTable(Float[] selectivities, CostModel model) {
+        if (selectivities.length > MAX_TERMS) {
+            throw new IllegalArgumentException("cannot exhaustively optimize more than "
+                    + MAX_TERMS + " selection conditions");
+        }
+        this.k = selectivities.length;
+        this.model = model;
+        int size = 1 << k;
+        this.cost = new float[size];
+        this.productOfSelectivities = new float[size];
+        this.left = new int[size];
+        this.leftMost = new int[size];
+        this.noBranch = new long[(size + 63) >>> 6];
+        this.fixedCost = new float[k + 1];
+        this.noBranchCost = new float[k + 1];
+
+        /* costs that only depend on the number of conditions in the &-term */
+        for (int n = 1; n <= k; n++) {
+            fixedCost[n] = model.fixedCost(n);
+            noBranchCost[n] = model.noBranchCost(n);
+        }
+
+        productOfSelectivities[0] = 1;
+        for (int s = 1; s < size; s++) {
+            initializeTerm(s, selectivities);
+        }
+    }
+
+    /**
+     * Redoes step (1) of Algorithm 4.11 for every subset containing the condition i,
+     * after its selectivity has changed. The plans of those subsets are reset to single
+     * &-terms, and have to be optimized again in ascending order; the entries of the
+     * other subsets do not depend on the condition i and are left alone.
+     *
+     * @param i index of the condition whose selectivity changed
+     * @param selectivities array of selectivity values of the selection conditions, with
+     * the new selectivity of condition i
+     */
+    void updateSelectivity(int i, Float[] selectivities) {
+        int bit = 1 << i;
+        for (int s = bit; s < cost.length; s = (s + 1) | bit) {
+            initializeTerm(s, selectivities);
+        }
+    }
+
+    /**
+     * Grows the table by one selection condition, with index k, and does step (1) of
+     * Algorithm 4.11 for the subsets containing it. The entries of the existing subsets,
+     * including their final plans, are kept as they are; the new subsets have to be
+     * optimized in ascending order.
+     *
+     * @param selectivities array of selectivity values of the selection conditions, with
+     * the selectivity of the new condition last
+     */
+    void addTerm(Float[] selectivities) {
+        if (k + 1 > MAX_TERMS) {
+            throw new IllegalArgumentException("cannot exhaustively optimize more than "
+                    + MAX_TERMS + " selection conditions");
+        }
+        int bit = 1 << k;
+        int size = bit << 1;
+        this.k = k + 1;
+        this.cost = Arrays.copyOf(cost, size);
+        this.productOfSelectivities = Arrays.copyOf(productOfSelectivities, size);
+        this.left = Arrays.copyOf(left, size);
+        this.leftMost = Arrays.copyOf(leftMost, size);
+        this.noBranch = Arrays.copyOf(noBranch, (size + 63) >>> 6);
+        this.fixedCost = Arrays.copyOf(fixedCost, k + 1);
+        this.noBranchCost = Arrays.copyOf(noBranchCost, k + 1);
+        fixedCost[k] = model.fixedCost(k);
+        noBranchCost[k] = model.noBranchCost(k);
+
+        for (int s = bit; s < size; s++) {
+            initializeTerm(s, selectivities);
+        }
+    }
+
+    /**
+     * Fills in the &-term plan for the subset s, choosing the no-branch algorithm where it
+     * is cheaper. The product of s extends the product of s without its highest
+     * condition, which must already be filled in.
+     */
+    private void initializeTerm(int s, Float[] selectivities) {
+        int highest = Integer.highestOneBit(s);
+        float p = productOfSelectivities[s ^ highest] * selectivities[Integer.numberOfTrailingZeros(highest)];
+        productOfSelectivities[s] = p;
+
+        /* every subset starts out as a single &-term */
+        left[s] = 0;
+        leftMost[s] = s;
+
+        /* compare to no-branch plan */
+        int n = Integer.bitCount(s);
+        float a = model.getA();
+        float branchCost = fixedCost[n] + (model.getM() * a + p * a);
+        if (branchCost > noBranchCost[n]) {
+            noBranch[s >>> 6] |= 1L << s;
+            cost[s] = noBranchCost[n];
+        } else {
+            noBranch[s >>> 6] &= ~(1L << s);
+            cost[s] = branchCost;
+        }
+    }
+
+    /**
+     * @return bitmask of the set containing every selection condition
+     */
+    int all() {
+        return cost.length - 1;
+    }
+
+    /**
+     * @param s bitmask of a subset of the selection conditions
+     * @return true if the &-term for s is cheaper with the no-branch algorithm
+     */
+    boolean isNoBranch(int s) {
+        return (noBranch[s >>> 6] & (1L << s)) != 0;
+    }
+
+    /**
+     * @param s bitmask of a subset of the selection conditions, whose plan is final
+     * @return bitmask of the left-most leaf in the best plan for s
+     */
+    int leftMostTerm(int s) {
+        return leftMost[s];
+    }
+
+    /**
+     * Records the left-most leaf of the plan for s, which must be called once the plan
+     * for s is final and before s is used as a right child. The plan of the left child
+     * is always final by then, since it is a proper subset of s.
+     *
+     * @param s bitmask of a subset of the selection conditions
+     * @return bitmask of the left-most leaf in the best plan for s
+     */
+    int setLeftMostTerm(int s) {
+        int leftMostTerm = left[s] == 0 ? s : leftMost[left[s]];
+        leftMost[s] = leftMostTerm;
+        return leftMostTerm;
+    }
+
+    /**
+     * Builds the QueryPlan tree for the best plan found for the input subset.
+     *
+     * @param s bitmask of a subset of the selection conditions
+     * @return root of the plan tree for s
+     */
+    QueryPlan toPlan(int s) {
+        QueryPlan plan = new QueryPlan(s, Integer.bitCount(s), productOfSelectivities[s], isNoBranch(s), cost[s], model);
+        if (left[s] != 0) {
+            plan.setChildren(toPlan(left[s]), toPlan(s ^ left[s]));
+        }
+        return plan;
+    }
+}
@@ -1,8 +1,15 @@
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * <p>
@@ -11,7 +18,7 @@ import java.util.Properties;
  * Memory</i> [Columbia University, 2004]. An instance of QueryOptimizer represents
  * an optimizer for a single query containing only simple selection conditions.
  * Multiple queries can be optimized concurrently by instantiating multiple
- * QueryOptimizers, which is made easy by the fromList(queries, config) factory method.
+ * QueryOptimizers, which is made easy by the fromList(queries, model) factory method.
  * </p>
  * <p>
  * The optimization is based on avoiding
@@ -70,21 +77,64 @@ import java.util.Properties;
  */
 public class QueryOptimizer {
 
-    private final Float[] selectivities;
-    private QueryPlan[] searchSpace;
-    private Properties config;
+    private Float[] selectivities;
+    private PlanTable searchSpace;
+    private QueryPlan plan;
+    private final CostModel model;
+    private final PlanCache cache;
+    private final int maxExhaustiveTerms;
     private boolean finished;
+    private long pairsConsidered;
+    private long prunedByCMetric;
+    private long prunedByDMetric;
+    private long planReplacements;
+
+    /* how the plan was found and how long each phase took, timed only while metrics are on */
+    private String source;
+    private OptimizationEvent event;
+    private long phaseStart;
+    private long setupNanos;
+    private long searchNanos;
+    private long planNanos;
+
+    /**
+     * queries with more selection conditions than this are optimized with the
+     * HeuristicOptimizer unless another limit is given; the PlanTable of a query this
+     * large takes under 100 MB, while one of PlanTable.MAX_TERMS conditions takes many GB
+     */
+    public static final int DEFAULT_MAX_EXHAUSTIVE_TERMS = 22;
+
+    /**
+     * @param maxExhaustiveTerms largest number of selection conditions to search
+     * exhaustively, as given
+     * @return the limit that is actually applied, since PlanTable cannot search more than
+     * PlanTable.MAX_TERMS conditions
+     */
+    static int exhaustiveLimit(int maxExhaustiveTerms) {
+        return Math.min(maxExhaustiveTerms, PlanTable.MAX_TERMS);
+    }
+
+    /** ways of finding a plan, as reported to OptimizerMetrics */
+    static final String SOURCE_EXHAUSTIVE = "exhaustive";
+    static final String SOURCE_PARALLEL = "parallel";
+    static final String SOURCE_INCREMENTAL = "incremental";
+    static final String SOURCE_CACHE = "cache";
+    static final String SOURCE_HEURISTIC = "heuristic";
 
     /**
      * Constructs a latent QueryOptimizer instance from the input data. No optimization or
      * significant memory usage occurs until the optimize() method is called on the instance.
      *
      * @param selectivities floating-point selectivity values for each input selection condition.
-     * @param config java properties with information about the machine we are optimizing for.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans to check before optimizing, or null
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
      */
-    private QueryOptimizer(Float[] selectivities, Properties config) {
+    private QueryOptimizer(Float[] selectivities, CostModel model, PlanCache cache, int maxExhaustiveTerms) {
         this.selectivities = selectivities;
-        this.config = config;
+        this.model = model;
+        this.cache = cache;
+        this.maxExhaustiveTerms = exhaustiveLimit(maxExhaustiveTerms);
         this.finished = false;
     }
 
@@ -95,70 +145,679 @@ public class QueryOptimizer {
      * @param queries list of float arrays, where each array represents a single query to be
      * optimized and contains floating-point selectivity values for each selection condition
      * in the query.
-     * @param config java properties with information about the machine we are optimizing for.
+     * @param model costs of the machine we are optimizing for.
      * @return an array of new QueryOptimizer instances, one for each set of selectivities in
      * the input
      */
-    public static QueryOptimizer[] fromList(List<Float[]> queries, Properties config) {
+    public static QueryOptimizer[] fromList(List<Float[]> queries, CostModel model) {
+        return fromList(queries, model, null);
+    }
+
+    /**
+     * Returns an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input, which look for their plan in the cache before optimizing and add it to the
+     * cache afterwards.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans shared by the optimizers, or null
+     * @return an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input
+     */
+    public static QueryOptimizer[] fromList(List<Float[]> queries, CostModel model, PlanCache cache) {
+        return fromList(queries, model, cache, DEFAULT_MAX_EXHAUSTIVE_TERMS);
+    }
+
+    /**
+     * Returns an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input, which search exhaustively only for queries with at most maxExhaustiveTerms
+     * selection conditions and use the HeuristicOptimizer for larger ones.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans shared by the optimizers, or null
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
+     * (0 to always use the heuristic)
+     * @return an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input
+     */
+    public static QueryOptimizer[] fromList(List<Float[]> queries, CostModel model, PlanCache cache,
+            int maxExhaustiveTerms) {
         QueryOptimizer[] o = new QueryOptimizer[queries.size()];
         for (int i = 0; i < o.length; i++) {
-            o[i] = new QueryOptimizer(queries.get(i), config);
+            o[i] = forQuery(queries.get(i), model, cache, maxExhaustiveTerms);
         }
         return o;
     }
 
+    /**
+     * Returns a new QueryOptimizer instance for a single query, which looks for its plan
+     * in the cache before optimizing and adds it to the cache afterwards.
+     *
+     * @param selectivities floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans, or null
+     * @return a new QueryOptimizer instance for the query
+     */
+    public static QueryOptimizer forQuery(Float[] selectivities, CostModel model, PlanCache cache) {
+        return forQuery(selectivities, model, cache, DEFAULT_MAX_EXHAUSTIVE_TERMS);
+    }
+
+    /**
+     * Returns a new QueryOptimizer instance for a single query, which searches exhaustively
+     * only if the query has at most maxExhaustiveTerms selection conditions and uses the
+     * HeuristicOptimizer otherwise.
+     *
+     * @param selectivities floating-point selectivity values for each selection condition
+     * in the query.
+     * @param model costs of the machine we are optimizing for.
+     * @param cache cache of finished plans, or null
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
+     * (0 to always use the heuristic)
+     * @return a new QueryOptimizer instance for the query
+     */
+    public static QueryOptimizer forQuery(Float[] selectivities, CostModel model, PlanCache cache,
+            int maxExhaustiveTerms) {
+        return new QueryOptimizer(selectivities, model, cache, maxExhaustiveTerms);
+    }
+
+    /**
+     * Returns an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input.
+     *
+     * @param queries list of float arrays, where each array represents a single query to be
+     * optimized and contains floating-point selectivity values for each selection condition
+     * in the query.
+     * @param config java properties with information about the machine we are optimizing for.
+     * @return an array of new QueryOptimizer instances, one for each set of selectivities in
+     * the input
+     * @throws IllegalArgumentException if the configuration is missing a parameter or has an
+     * invalid one
+     */
+    public static QueryOptimizer[] fromList(List<Float[]> queries, Properties config) {
+        return fromList(queries, CostModel.fromProperties(config));
+    }
+
     /**
      * Algorithm 4.11 from <i>Selection Conditions in Main Memory</i> [Ross, 2004]
+     * <p>
+     * Rather than testing every pair of plans for intersection, the left children of
+     * each right child s are generated directly as the nonempty submasks of the
+     * complement of s, so only the ~3^k disjoint pairs are ever visited. Both loops run
+     * in ascending bitmask order, which is the order the pairs were considered in when
+     * we scanned the whole search space, so ties between equal-cost plans are broken
+     * exactly as before.
+     * </p>
+     * <p>
+     * The search space is kept in a PlanTable, so nothing is allocated per subset; the
+     * QueryPlan tree is only built for the final plan.
+     * </p>
+     * <p>
+     * Queries with more selection conditions than the exhaustive limit are handed to the
+     * HeuristicOptimizer instead.
+     * </p>
      */
-    private void optimize() {
+    public void optimize() {
+        startOptimization(SOURCE_EXHAUSTIVE);
+
+        /* nothing to do if we have already chosen a plan for this query */
+        if (findCachedPlan() || optimizeHeuristically()) {
+            return;
+        }
 
         /* set up the search space with power set of selection conditions */
         initializeSearchSpace();
+        resetCounts(pairsOf(searchSpace.k));
+        setupNanos = lap();
+
+        float[] cost = searchSpace.cost;
+        float[] product = searchSpace.productOfSelectivities;
+        int[] left = searchSpace.left;
+        float[] fixedCost = searchSpace.fixedCost;
+        float m = model.getM();
+
+        /* bitmask containing every selection condition */
+        int all = searchSpace.all();
+        long prunedByC = 0;
+        long prunedByD = 0;
+        long replaced = 0;
 
         /* optimize */
-        for (QueryPlan s : searchSpace) {
-            /* s is the right child */
-            for (QueryPlan s2 : searchSpace) {
-                /* s.t. s intersect s' = empty set */
-                if (!s.intersects(s2)) {
-                    /* s2 is the left child */
-                    if (s.subOptimalByCMetric(s2)) {
-                        /* do nothing; suboptimal by Lemma 4.8 */
-                        continue;
-                    } else if (s2.productOfSelectivities <= 0.5 && s.subOptimalByDMetric(s2)) {
-                        /* do nothing; suboptimal by Lemma 4.9 */
-                        continue;
-                    } else {
-                        /* locate current plan for s U s2 */
-                        QueryPlan cur = searchSpace[s2.unionIndex(s)];
-                        if (cur == s) {
-                        	System.out.println("uh oh found an issue");
-                        }
-
-                        /* calculate the combined cost of s2 and s, compare to cost of current plan */
-                        float combinedCost = QueryOptimizerUtils.combinedCost(s2, s);
-                        if (combinedCost < cur.cost) {
-                            cur.setChildren(s2, s);
-                            cur.cost = combinedCost;
-                        }
-                    }
+        for (int s = 1; s <= all; s++) {
+            /* s is the right child, so its plan is final; its left-most leaf is fixed for all left children */
+            int leftMost = searchSpace.setLeftMostTerm(s);
+            float p2 = product[leftMost];
+            float dmetric1 = fixedCost[Integer.bitCount(leftMost)];
+            float cmetric1 = (p2 - 1) / dmetric1;
+            float rightCost = cost[s];
 
+            /* s2 ranges over plans s.t. s intersect s2 = empty set */
+            int complement = all & ~s;
+            for (int s2 = (int) QueryOptimizerUtils.nextSubmask(0, complement); s2 != 0;
+                    s2 = (int) QueryOptimizerUtils.nextSubmask(s2, complement)) {
+                /* s2 is the left child */
+                float p1 = product[s2];
+                float dmetric2 = fixedCost[Integer.bitCount(s2)];
+                if (p2 <= p1 && cmetric1 < (p1 - 1) / dmetric2) {
+                    /* do nothing; suboptimal by Lemma 4.8 */
+                    prunedByC++;
+                    continue;
+                } else if (p1 <= 0.5 && p2 <= p1 && dmetric1 < dmetric2) {
+                    /* do nothing; suboptimal by Lemma 4.9 */
+                    prunedByD++;
+                    continue;
+                } else {
+                    /* calculate the combined cost of s2 and s, compare to cost of current plan for s U s2 */
+                    float q = p1 <= .5 ? p1 : 1 - p1;
+                    float combinedCost = dmetric2 + m * q + p1 * rightCost;
+                    int union = s2 | s;
+                    if (combinedCost < cost[union]) {
+                        left[union] = s2;
+                        cost[union] = combinedCost;
+                        replaced++;
+                    }
                 }
             }
         }
+        addCounts(prunedByC, prunedByD, replaced);
+        searchNanos = lap();
+
+        finish(searchSpace.toPlan(searchSpace.all()));
+    }
+
+    /**
+     * <p>
+     * Parallel version of optimize(). The best plan for a subset u only depends on the
+     * best plans for the proper subsets of u, so once every subset with fewer than n
+     * conditions has been optimized, all of the subsets with exactly n conditions can be
+     * optimized independently. The search space is processed one cardinality at a time,
+     * with the subsets of each cardinality split across the workers of the pool.
+     * </p>
+     * <p>
+     * Each subset is owned by exactly one worker, which considers its splits in the same
+     * order as optimize() does, so the chosen plan and cost are identical to the serial
+     * result regardless of the number of workers.
+     * </p>
+     *
+     * @param pool workers to optimize each cardinality on
+     */
+    public void optimize(ForkJoinPool pool) {
+        startOptimization(SOURCE_PARALLEL);
+
+        /* nothing to do if we have already chosen a plan for this query */
+        if (findCachedPlan() || optimizeHeuristically()) {
+            return;
+        }
+
+        /* set up the search space with power set of selection conditions */
+        initializeSearchSpace();
+        resetCounts(pairsOf(searchSpace.k));
+        setupNanos = lap();
+
+        /* subsets with a single condition are already optimal &-terms */
+        int all = searchSpace.all();
+        int threshold = Math.max(MIN_SUBSETS_PER_TASK, (all + 1) / (pool.getParallelism() * TASKS_PER_THREAD));
+        for (int n = 2; n <= searchSpace.k; n++) {
+            pool.invoke(new OptimizeLevel(n, 1, all + 1, threshold));
+        }
+        searchNanos = lap();
+
+        finish(searchSpace.toPlan(searchSpace.all()));
+    }
+
+    /**
+     * <p>
+     * Changes the selectivity of one selection condition, and if the query has already
+     * been optimized, optimizes it again for the new selectivities.
+     * </p>
+     * <p>
+     * The best plan for a subset of the conditions only depends on the selectivities of
+     * the conditions in it, so after an exhaustive search only the subsets containing
+     * condition i are optimized again: their &-terms are recomputed (half of the search
+     * space) and they are optimized in ascending order, i.e. after all of their subsets,
+     * which considers about 2/3 of the pairs of a full search. The entries of the other
+     * subsets are reused as they are. The splits of each subset are considered in the same
+     * order as in optimize(), so the plan is the same as that of a full re-optimization.
+     * If the plan was not found by an exhaustive search (it came from the cache or the
+     * heuristic), the query is optimized from scratch.
+     * </p>
+     *
+     * @param i index of the selection condition (0-based)
+     * @param p new selectivity of the condition
+     */
+    public void updateSelectivity(int i, float p) {
+        if (i < 0 || i >= selectivities.length) {
+            throw new IndexOutOfBoundsException("no selection condition " + i);
+        }
+        /* the caller's array is left as it was */
+        Float[] updated = selectivities.clone();
+        updated[i] = p;
+        this.selectivities = updated;
+        if (!finished) {
+            return;
+        }
+        if (searchSpace == null) {
+            reoptimize();
+            return;
+        }
+
+        /* only the pairs involving condition i are considered */
+        startOptimization(SOURCE_INCREMENTAL);
+        searchSpace.updateSelectivity(i, selectivities);
+        resetCounts(pairsOf(searchSpace.k) - pairsOf(searchSpace.k - 1));
+        setupNanos = lap();
+        long[] counts = new long[3];
+        int bit = 1 << i;
+        for (int u = (bit + 1) | bit; u <= searchSpace.all(); u = (u + 1) | bit) {
+            optimizeSubset(u, counts);
+        }
+        addCounts(counts[0], counts[1], counts[2]);
+        searchNanos = lap();
+
+        finish(searchSpace.toPlan(searchSpace.all()));
+    }
+
+    /**
+     * <p>
+     * Adds a selection condition to the query, after the existing ones, and if the query
+     * has already been optimized, optimizes it again with the new condition.
+     * </p>
+     * <p>
+     * The best plans for the 2^k - 1 subsets of the existing conditions do not change, so
+     * after an exhaustive search the search space is grown to 2^(k+1) entries, keeping
+     * those plans, and only the 2^k subsets containing the new condition are optimized,
+     * in ascending order. The plan is the same as that of a full re-optimization. If the
+     * plan was not found by an exhaustive search, or the query becomes too large for one,
+     * the query is optimized from scratch.
+     * </p>
+     *
+     * @param p selectivity of the new condition
+     * @return index of the new condition (0-based)
+     */
+    public int addSelectivity(float p) {
+        int i = selectivities.length;
+        Float[] updated = Arrays.copyOf(selectivities, i + 1);
+        updated[i] = p;
+        this.selectivities = updated;
+        if (!finished) {
+            return i;
+        }
+        if (searchSpace == null || selectivities.length > maxExhaustiveTerms) {
+            reoptimize();
+            return i;
+        }
+
+        /* only the pairs involving the new condition are considered */
+        startOptimization(SOURCE_INCREMENTAL);
+        searchSpace.addTerm(selectivities);
+        resetCounts(pairsOf(searchSpace.k) - pairsOf(searchSpace.k - 1));
+        setupNanos = lap();
+        long[] counts = new long[3];
+        int bit = 1 << i;
+        for (int u = bit + 1; u <= searchSpace.all(); u++) {
+            optimizeSubset(u, counts);
+        }
+        addCounts(counts[0], counts[1], counts[2]);
+        searchNanos = lap();
+
+        finish(searchSpace.toPlan(searchSpace.all()));
+        return i;
+    }
+
+    /**
+     * Optimizes the query from scratch, dropping the search space of any earlier search.
+     */
+    private void reoptimize() {
+        this.searchSpace = null;
+        this.finished = false;
+        optimize();
+    }
+
+    /**
+     * Looks for the plan of this query in the cache, if there is one.
+     *
+     * @return true if the plan was found and optimization can be skipped
+     */
+    private boolean findCachedPlan() {
+        if (!isCached()) {
+            return false;
+        }
+        QueryPlan cached = cache.get(cache.keyOf(selectivities, model));
+        if (cached == null) {
+            return false;
+        }
+        this.plan = cached;
+        this.finished = true;
+        this.source = SOURCE_CACHE;
+        searchNanos = lap();
+        recordMetrics();
+        return true;
+    }
+
+    /**
+     * Only plans found by an exhaustive search are cached: the key of a plan does not
+     * say how it was found, so a cached heuristic plan could otherwise be served to an
+     * optimizer that would search exhaustively, or an exhaustive one to an optimizer that
+     * uses the heuristic. Heuristic plans take O(k^2) time to find, so little is lost.
+     *
+     * @return true if this query looks for its plan in the cache and adds it there
+     */
+    private boolean isCached() {
+        return cache != null && selectivities.length <= maxExhaustiveTerms;
+    }
+
+    /**
+     * Chooses a plan with the HeuristicOptimizer if the query is too large to search
+     * exhaustively.
+     *
+     * @return true if the query was too large, and the heuristic plan has been chosen
+     */
+    private boolean optimizeHeuristically() {
+        if (selectivities.length <= maxExhaustiveTerms) {
+            return false;
+        }
+        this.source = SOURCE_HEURISTIC;
+        QueryPlan heuristicPlan = HeuristicOptimizer.optimize(selectivities, model);
+        searchNanos = lap();
+        finish(heuristicPlan);
+        return true;
+    }
+
+    /**
+     * Keeps the plan tree for the full set of selection conditions once it has been
+     * chosen, and adds it to the cache if there is one.
+     *
+     * @param plan root of the chosen plan tree
+     */
+    private void finish(QueryPlan plan) {
+        this.plan = plan;
+        if (isCached()) {
+            cache.put(cache.keyOf(selectivities, model), plan);
+        }
 
         /* set finished flag */
         this.finished = true;
+        planNanos = lap();
+        recordMetrics();
+    }
+
+    /**
+     * Starts counting and, if metrics are on (see OptimizerMetrics), timing a new
+     * optimization.
+     *
+     * @param source how the plan is going to be found, unless it is in the cache
+     */
+    private void startOptimization(String source) {
+        resetCounts(0);
+        this.source = source;
+        this.setupNanos = 0;
+        this.searchNanos = 0;
+        this.planNanos = 0;
+        if (OptimizerMetrics.isRecording()) {
+            this.event = OptimizerMetrics.beginEvent();
+            this.phaseStart = System.nanoTime();
+        } else {
+            this.event = null;
+            this.phaseStart = 0;
+        }
+    }
+
+    /**
+     * @return time since the end of the last phase, or 0 if metrics are off
+     */
+    private long lap() {
+        if (phaseStart == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - phaseStart;
+        phaseStart = now;
+        return elapsed;
+    }
+
+    /**
+     * Adds the finished optimization to the metrics, if they are on.
+     */
+    private void recordMetrics() {
+        if (phaseStart != 0) {
+            OptimizerMetrics.record(event, selectivities.length, source, getPairsConsidered(), getPrunedByCMetric(),
+                    getPrunedByDMetric(), getPlanReplacements(), setupNanos, searchNanos, planNanos);
+            this.event = null;
+        }
+    }
+
+    /**
+     * Finds the best plan for the subset u by considering every way of splitting it into
+     * a left child s2 and a right child s, assuming the best plans for all of the proper
+     * subsets of u are already in the search space. The right children are visited in
+     * ascending bitmask order, so ties are broken the same way as in optimize().
+     *
+     * @param u bitmask of the subset to optimize
+     * @param counts the number of splits pruned by Lemma 4.8 and by Lemma 4.9, and the
+     * number of splits that improved on the best plan so far, are added to its first,
+     * second and third elements
+     */
+    private void optimizeSubset(int u, long[] counts) {
+        float[] cost = searchSpace.cost;
+        float[] product = searchSpace.productOfSelectivities;
+        int[] left = searchSpace.left;
+        float[] fixedCost = searchSpace.fixedCost;
+        float m = model.getM();
+
+        float bestCost = cost[u];
+        int bestLeft = left[u];
+        for (int s = (int) QueryOptimizerUtils.nextSubmask(0, u); s != u;
+                s = (int) QueryOptimizerUtils.nextSubmask(s, u)) {
+            /* s is the right child, s2 is the left child */
+            int s2 = u ^ s;
+            int leftMost = searchSpace.leftMostTerm(s);
+            float p2 = product[leftMost];
+            float dmetric1 = fixedCost[Integer.bitCount(leftMost)];
+            float p1 = product[s2];
+            float dmetric2 = fixedCost[Integer.bitCount(s2)];
+            if (p2 <= p1 && (p2 - 1) / dmetric1 < (p1 - 1) / dmetric2) {
+                /* do nothing; suboptimal by Lemma 4.8 */
+                counts[0]++;
+                continue;
+            } else if (p1 <= 0.5 && p2 <= p1 && dmetric1 < dmetric2) {
+                /* do nothing; suboptimal by Lemma 4.9 */
+                counts[1]++;
+                continue;
+            } else {
+                /* calculate the combined cost of s2 and s, compare to cost of current plan for u */
+                float q = p1 <= .5 ? p1 : 1 - p1;
+                float combinedCost = dmetric2 + m * q + p1 * cost[s];
+                if (combinedCost < bestCost) {
+                    bestLeft = s2;
+                    bestCost = combinedCost;
+                    counts[2]++;
+                }
+            }
+        }
+        left[u] = bestLeft;
+        cost[u] = bestCost;
+        searchSpace.setLeftMostTerm(u);
+    }
+
+    /**
+     * @return number of ordered pairs of disjoint nonempty subsets of k conditions,
+     * 3^k - 2 * 2^k + 1
+     */
+    private static long pairsOf(int k) {
+        long pairs = 1;
+        for (int i = 0; i < k; i++) {
+            pairs *= 3;
+        }
+        return pairs - 2 * (1L << k) + 1;
+    }
+
+    /**
+     * Starts counting the pairs of plans considered by a new search.
+     */
+    private synchronized void resetCounts(long pairs) {
+        pairsConsidered = pairs;
+        prunedByCMetric = 0;
+        prunedByDMetric = 0;
+        planReplacements = 0;
+    }
+
+    /**
+     * Adds to the number of pairs of plans pruned by Lemmas 4.8 and 4.9, and to the
+     * number of pairs that replaced the best plan found so far for their union.
+     */
+    private synchronized void addCounts(long byCMetric, long byDMetric, long replaced) {
+        prunedByCMetric += byCMetric;
+        prunedByDMetric += byDMetric;
+        planReplacements += replaced;
+    }
+
+    /** smallest range of bitmasks worth scanning as a separate task */
+    private static final int MIN_SUBSETS_PER_TASK = 1 << 10;
+
+    /** each worker is handed roughly this many ranges of each cardinality */
+    private static final int TASKS_PER_THREAD = 8;
+
+    /**
+     * Optimizes the subsets with n conditions whose bitmasks lie in [from, to), splitting
+     * the range in half until it is small enough to scan on a single thread.
+     */
+    private class OptimizeLevel extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int n;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        OptimizeLevel(int n, int from, int to, int threshold) {
+            this.n = n;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                long[] counts = new long[3];
+                for (int u = from; u < to; u++) {
+                    if (Integer.bitCount(u) == n) {
+                        optimizeSubset(u, counts);
+                    }
+                }
+                addCounts(counts[0], counts[1], counts[2]);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new OptimizeLevel(n, from, mid, threshold), new OptimizeLevel(n, mid, to, threshold));
+            }
+        }
+    }
+
+    /**
+     * @return number of pairs of disjoint plans (left child, right child) the last
+     * exhaustive search (or incremental update) considered, or 0 if the plan came from the
+     * cache or the heuristic
+     */
+    public synchronized long getPairsConsidered() {
+        return pairsConsidered;
+    }
+
+    /**
+     * @return number of pairs considered that were skipped as suboptimal by Lemma 4.8
+     */
+    public synchronized long getPrunedByCMetric() {
+        return prunedByCMetric;
+    }
+
+    /**
+     * @return number of pairs considered that were skipped as suboptimal by Lemma 4.9
+     */
+    public synchronized long getPrunedByDMetric() {
+        return prunedByDMetric;
+    }
+
+    /**
+     * @return number of pairs considered whose combined cost was computed, i.e. that
+     * were not pruned
+     */
+    public synchronized long getCostEvaluations() {
+        return pairsConsidered - prunedByCMetric - prunedByDMetric;
+    }
+
+    /**
+     * @return number of pairs considered whose combined cost beat the best plan found so
+     * far for their union, and replaced it
+     */
+    public synchronized long getPlanReplacements() {
+        return planReplacements;
+    }
+
+    /**
+     * @return time the last optimization spent setting up (or updating) the search space,
+     * in nanoseconds, or 0 if metrics were off (see OptimizerMetrics)
+     */
+    public long getSetupNanos() {
+        return setupNanos;
+    }
+
+    /**
+     * @return time the last optimization spent searching for the plan (or looking it up in
+     * the cache), in nanoseconds, or 0 if metrics were off
+     */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    /**
+     * @return time the last optimization spent building the plan tree and caching it, in
+     * nanoseconds, or 0 if metrics were off
+     */
+    public long getPlanNanos() {
+        return planNanos;
+    }
+
+    /**
+     * @return root of the chosen plan tree
+     */
+    public QueryPlan getPlan() {
+        assert finished;
+        return plan;
     }
 
     /**
      * @return formatted statistics about the optimization
      */
     public String getFormattedStatistics() {
+        StringBuilder statistics = new StringBuilder(STATISTICS_CAPACITY);
+        try {
+            appendFormattedStatistics(statistics);
+        } catch (IOException exception) {
+            /* cannot happen when appending to a StringBuilder */
+            throw new IllegalStateException(exception);
+        }
+        return statistics.toString();
+    }
+
+    /**
+     * Writes the formatted statistics about the optimization straight into the output,
+     * without building intermediate strings.
+     *
+     * @param out destination of the statistics
+     * @throws IOException if the output cannot be written to
+     */
+    public void appendFormattedStatistics(Appendable out) throws IOException {
         assert finished;
-        return searchSpace[searchSpace.length - 1].getFormattedStatistics(selectivities);
+        QueryOptimizerUtils.appendStatistics(out, selectivities, plan);
     }
 
+    /** room for the statistics of a typical query */
+    private static final int STATISTICS_CAPACITY = 512;
+
     /**
      * <p>
      * Step (1) of Algorithm 4.11
@@ -171,37 +830,216 @@ public class QueryOptimizer {
      * </p>
      */
     private void initializeSearchSpace() {
-    	double sizeOfSpace = Math.pow(2, selectivities.length) - 1;
-        this.searchSpace = new QueryPlan[(int) sizeOfSpace];
-        for (int i = 0, bitmask = 1; i < searchSpace.length; i++, bitmask++) {
-            searchSpace[i] = new QueryPlan(bitmask, selectivities);
-        }
+        this.searchSpace = new PlanTable(selectivities, model);
     }
 
+    private static final String USAGE =
+        "Usage:./stage2.sh [options] query_file config.txt\n"
+        + "    --threads n            optimize on n worker threads (0 for all processors)\n"
+        + "    --parallel-dp          split each query, rather than the batch, across the workers\n"
+        + "    --cache-mb n           reuse plans of repeated queries, keeping up to n MB of plans\n"
+        + "    --cache-precision p    share cached plans between selectivities that round to the\n"
+        + "                           same multiple of p\n"
+        + "    --canonical            share cached plans between queries whose selectivities only\n"
+        + "                           differ in order\n"
+        + "    --plan-store file      also keep the cached plans in file, and reuse the plans kept\n"
+        + "                           there by earlier runs (see PlanStore)\n"
+        + "    --stream               write out each result as soon as it is ready, reading the\n"
+        + "                           queries one at a time (query_file may be - for STDIN)\n"
+        + "    --expressions          each line of query_file may follow its selectivities with a\n"
+        + "                           colon and an AND/OR expression over them, e.g.\n"
+        + "                           0.2 0.5 0.3 : (1 & 2) | 3 (see ExpressionOptimizer); only\n"
+        + "                           --metrics may be combined with it\n"
+        + "    --metrics              print pruning counters and phase timings to STDERR (see\n"
+        + "                           OptimizerMetrics)\n"
+        + "    --max-exhaustive k     search exhaustively only for queries with at most k\n"
+        + "                           conditions (default " + DEFAULT_MAX_EXHAUSTIVE_TERMS + ", at most "
+        + PlanTable.MAX_TERMS + "); use a heuristic\n"
+        + "                           for larger ones";
+
+    /** size of the plan cache if only its precision or a plan store is given */
+    private static final long DEFAULT_CACHE_MB = 64;
+
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage:./stage2.sh query_file config.txt");
+        /* parse options */
+        int threads = 1;
+        boolean parallelDp = false;
+        boolean stream = false;
+        boolean metrics = false;
+        boolean canonical = false;
+        boolean expressions = false;
+        long cacheMb = DEFAULT_CACHE_MB;
+        float cachePrecision = 0;
+        /* whether the options were given, since giving either turns on the cache */
+        boolean cacheMbSet = false;
+        boolean cachePrecisionSet = false;
+        /* whether an option that --expressions does not support was given */
+        boolean batchOptions = false;
+        String planStore = null;
+        int maxExhaustiveTerms = DEFAULT_MAX_EXHAUSTIVE_TERMS;
+        int arg = 0;
+        for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+            String option = args[arg];
+            if (option.equals("--parallel-dp")) {
+                parallelDp = true;
+                batchOptions = true;
+                continue;
+            } else if (option.equals("--stream")) {
+                stream = true;
+                batchOptions = true;
+                continue;
+            } else if (option.equals("--metrics")) {
+                metrics = true;
+                continue;
+            } else if (option.equals("--canonical")) {
+                canonical = true;
+                batchOptions = true;
+                continue;
+            } else if (option.equals("--expressions")) {
+                expressions = true;
+                continue;
+            } else if (arg + 1 == args.length) {
+                System.out.println(USAGE);
+                return;
+            }
+            String value = args[++arg];
+            batchOptions = true;
+            try {
+                if (option.equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                } else if (option.equals("--cache-mb")) {
+                    cacheMb = Long.parseLong(value);
+                    cacheMbSet = true;
+                } else if (option.equals("--cache-precision")) {
+                    cachePrecision = Float.parseFloat(value);
+                    cachePrecisionSet = true;
+                } else if (option.equals("--plan-store")) {
+                    planStore = value;
+                } else if (option.equals("--max-exhaustive")) {
+                    maxExhaustiveTerms = Integer.parseInt(value);
+                } else {
+                    System.out.println(USAGE);
+                    return;
+                }
+            } catch (NumberFormatException exception) {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if (args.length - arg != 2 || threads < 0 || cacheMb <= 0 || (expressions && batchOptions)
+                || !(cachePrecision >= 0) || Float.isInfinite(cachePrecision) || maxExhaustiveTerms < 0) {
+            System.out.println(USAGE);
             return;
         }
+        if (threads == 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        String queryFile = args[arg];
+        String configFile = args[arg + 1];
 
         /* read configuration file */
-        File configFile = new File(args[1]);
-        Properties config = new Properties();
-        QueryOptimizerUtils.setConfig(config);
+        CostModel model;
+        PlanCache cache = null;
+        PlanStore store = null;
         try {
-            config.load(new FileInputStream(configFile));
+            model = CostModel.load(new File(configFile));
+            if (planStore != null) {
+                store = new PlanStore(new File(planStore), cachePrecision);
+            }
+            if (cacheMbSet || cachePrecisionSet || canonical || store != null) {
+                cache = new PlanCache(cacheMb << 20, cachePrecision, canonical, store);
+            }
         } catch (IOException exception) {
             System.out.println(exception.getMessage());
             return;
+        } catch (IllegalArgumentException exception) {
+            System.out.println(exception.getMessage());
+            return;
         }
 
-        /* create QueryOptimizers from input query file */
-        QueryOptimizer[] optimizers = fromList(QueryOptimizerUtils.readQueryFile(args[0]), config);
+        if (metrics) {
+            OptimizerMetrics.INSTANCE.setEnabled(true);
+        }
 
-        /* perform optimizations and print out statistics */
-        for (QueryOptimizer o : optimizers) {
-            o.optimize();
-            System.out.print(o.getFormattedStatistics());
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 1 << 16);
+        try {
+            /* write out the results before any error message */
+            try {
+                if (expressions) {
+                    /* plans for AND/OR expressions are neither cached nor split across threads */
+                    ExpressionOptimizer.optimizeAll(queryFile, model, out);
+                } else if (stream) {
+                    /* optimize the queries as they are read, writing out each result as soon as possible */
+                    QueryReader in = QueryReader.open(queryFile);
+                    try {
+                        new StreamingOptimizer(model, cache, threads, parallelDp, maxExhaustiveTerms).run(in, out);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    optimizeAll(QueryOptimizerUtils.readQueryFile(queryFile), model, cache, threads, parallelDp,
+                            maxExhaustiveTerms, out);
+                }
+            } finally {
+                out.flush();
+            }
+        } catch (IOException exception) {
+            System.out.println(exception.getMessage());
+        } catch (IllegalArgumentException exception) {
+            /* a malformed selectivity, or a query with too many conditions */
+            System.out.println(exception.getMessage());
+        }
+
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException exception) {
+                System.out.println(exception.getMessage());
+            }
+        }
+        if (cache != null) {
+            System.err.println(cache);
+        }
+        if (metrics) {
+            System.err.println(OptimizerMetrics.INSTANCE);
+        }
+    }
+
+    /**
+     * Optimizes all of the queries and writes out their statistics in input order.
+     */
+    private static void optimizeAll(List<Float[]> queries, CostModel model, PlanCache cache,
+            int threads, boolean parallelDp, int maxExhaustiveTerms, Writer out) throws IOException {
+        if (threads > 1 && parallelDp) {
+            /* optimize the queries one at a time, each one on the whole pool of workers */
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                for (QueryOptimizer o : fromList(queries, model, cache, maxExhaustiveTerms)) {
+                    o.optimize(pool);
+                    o.appendFormattedStatistics(out);
+                }
+            } finally {
+                pool.shutdown();
+            }
+        } else if (threads > 1) {
+            /* optimize the queries on a pool of workers, print out statistics in input order */
+            BatchOptimizer batch = new BatchOptimizer(threads);
+            try {
+                for (String statistics : batch.optimize(queries, model, cache, maxExhaustiveTerms)) {
+                    out.write(statistics);
+                }
+            } finally {
+                batch.shutdown();
+            }
+        } else {
+            /* create QueryOptimizers from input query file */
+            QueryOptimizer[] optimizers = fromList(queries, model, cache, maxExhaustiveTerms);
+
+            /* perform optimizations and print out statistics */
+            for (QueryOptimizer o : optimizers) {
+                o.optimize();
+                o.appendFormattedStatistics(out);
+            }
         }
     }
 
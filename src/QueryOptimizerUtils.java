@@ -1,79 +1,22 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
-import java.util.StringTokenizer;
 
 
 public class QueryOptimizerUtils {
     /**
-     * configuration stuff (to be read from input file)
-     */
-    private static Properties config;
-
-    public static Properties getConfig() {
-        return config;
-    }
-
-    public static void setConfig(Properties newConfig) {
-        config = newConfig;
-    }
-
-    public static float getR() {
-        return Float.parseFloat(config.getProperty("r"));
-    }
-
-    public static float getT() {
-        return (float) Integer.parseInt(config.getProperty("t"));
-    }
-
-    public static float getL() {
-        return (float) Integer.parseInt(config.getProperty("l"));
-    }
-
-    public static float getM() {
-        return (float) Integer.parseInt(config.getProperty("m"));
-    }
-
-    public static float getA() {
-        return (float) Integer.parseInt(config.getProperty("a"));
-    }
-
-    public static float getF() {
-        return (float) Integer.parseInt(config.getProperty("f"));
-    }
-
-    /**
-     * @param queryFileName path to input file
+     * @param queryFileName path to input file, or "-" for the standard input
      * @return list of float arrays, each representing a set of selectivities for a query
      */
     public static List<Float[]> readQueryFile(String queryFileName) {
-        File queryFile = new File(queryFileName);
-        BufferedReader queryReader;
         List<Float[]> queries = new ArrayList<Float[]>();
 
         try {
-            InputStream queryIn = new BufferedInputStream(new FileInputStream(
-                        queryFile));
-            queryReader = new BufferedReader(new InputStreamReader(queryIn));
-
+            QueryReader queryReader = QueryReader.open(queryFileName);
             try {
-                while (queryReader.ready()) {
-                    String line = queryReader.readLine();
-                    ArrayList<Float> selectivities = new ArrayList<Float>();
-                    StringTokenizer tokenizer = new StringTokenizer(line, " ");
-                    while (tokenizer.hasMoreTokens()) {
-                        String token = tokenizer.nextToken();
-                        selectivities.add(Float.parseFloat(token));
-                    }
-                    queries.add(selectivities.toArray(new Float[selectivities
-                                .size()]));
+                for (Float[] selectivities = queryReader.next(); selectivities != null;
+                        selectivities = queryReader.next()) {
+                    queries.add(selectivities);
                 }
             } finally {
                 queryReader.close();
@@ -85,13 +28,30 @@ public class QueryOptimizerUtils {
         return queries;
     }
 
+    /**
+     * @param left plan evaluated first, as an &-term
+     * @param right plan evaluated only for the rows that satisfy the left plan
+     * @return cost of the plan left && right
+     */
     public static float combinedCost(QueryPlan left, QueryPlan right) {
         float cost = 0;
-        cost += left.getFixedCost() + getM() * left.getQ();
+        cost += left.getFixedCost() + left.model.getM() * left.getQ();
         cost += left.productOfSelectivities*right.cost;
         return cost;
     }
 
+    /**
+     * Steps through the submasks of a bitmask in ascending order. Starting from 0, repeated
+     * calls visit every nonempty submask of the mask exactly once and then return 0.
+     *
+     * @param submask the current submask (0 to get the first one)
+     * @param mask bitmask whose submasks are being enumerated
+     * @return the next larger submask of mask, or 0 once all have been visited
+     */
+    public static long nextSubmask(long submask, long mask) {
+        return (submask - mask) & mask;
+    }
+
     /**
      * @param bitmask bitmask representation of condition subset
      * @return list of atoms included in the bitmask
@@ -228,17 +188,174 @@ public class QueryOptimizerUtils {
      * @return
      */
     public static String formatStatistics(Float[] selectivities, String code, float cost) {
-        return String.format(STATISTICS_FMT, formatSelectivities(selectivities), code, cost);
+        return formatStatistics(formatSelectivities(selectivities), code, cost);
+    }
+
+    /**
+     * Returns formatted optimization statistics to be printed as output
+     *
+     * @param query the query, as it should appear in the output
+     * @param code the C code to be included in the output
+     * @param cost cost of the plan
+     * @return
+     */
+    public static String formatStatistics(String query, String code, float cost) {
+        return String.format(STATISTICS_FMT, query, code, cost);
     }
 
+    /**
+     * <p>
+     * Writes the formatted optimization statistics for a plan straight into the output,
+     * producing exactly the same text as formatStatistics(selectivities,
+     * plan.getFormattedCode(), plan.cost) without building any intermediate strings or
+     * lists. Numbers are appended directly when the output is a StringBuilder, so
+     * rendering into a reused StringBuilder allocates next to nothing.
+     * </p>
+     *
+     * @param out destination of the statistics
+     * @param selectivities array of selectivity values of the selection conditions
+     * @param plan root of the plan tree
+     * @throws IOException if the output cannot be written to
+     */
+    public static void appendStatistics(Appendable out, Float[] selectivities, QueryPlan plan) throws IOException {
+        out.append(DOUBLE_RULE);
+        appendSelectivities(out, selectivities);
+        out.append('\n').append(SINGLE_RULE);
+        appendCode(out, plan);
+        out.append('\n').append(SINGLE_RULE).append("cost: ");
+        appendFloat(out, plan.cost);
+        out.append('\n').append(DOUBLE_RULE);
+    }
+
+    /**
+     * Writes the formatted c code for the plan (see formatCode) into the output.
+     *
+     * @param out destination of the code
+     * @param plan root of the plan tree
+     * @throws IOException if the output cannot be written to
+     */
+    public static void appendCode(Appendable out, QueryPlan plan) throws IOException {
+        if (plan.noBranchFlag) {
+            /* the last &-term is evaluated without branching */
+            QueryPlan noBranchTerm = plan;
+            while (noBranchTerm.left != null && noBranchTerm.right != null) {
+                noBranchTerm = noBranchTerm.right;
+            }
+            if (noBranchTerm == plan) {
+                out.append("answer[j] = i;\nj += (");
+            } else {
+                out.append("if(");
+                appendTerms(out, plan, noBranchTerm, true);
+                out.append(") {\n    answer[j] = i;\n    j += (");
+            }
+            appendTerm(out, noBranchTerm.bitmask);
+            out.append(noBranchTerm == plan ? ");\n" : ");\n}\n");
+        } else {
+            out.append("if(");
+            appendTerms(out, plan, null, true);
+            out.append(") {\n    answer[j++] = i;\n}\n");
+        }
+    }
+
+    /**
+     * Writes the &-terms at the leaves of the plan tree, in order and joined with &&
+     * conjunctions, into the output.
+     *
+     * @param skip leaf to leave out, or null
+     * @param first true if no term has been written yet
+     * @return true if still no term has been written
+     */
+    private static boolean appendTerms(Appendable out, QueryPlan plan, QueryPlan skip, boolean first) throws IOException {
+        if (plan.left != null && plan.right != null) {
+            first = appendTerms(out, plan.left, skip, first);
+            return appendTerms(out, plan.right, skip, first);
+        } else if (plan == skip) {
+            return first;
+        }
+        if (!first) {
+            out.append(" && ");
+        }
+        appendTerm(out, plan.bitmask);
+        return false;
+    }
+
+    /**
+     * Writes the &-term of all conditions in the bitmask (see formatTerm) into the output.
+     */
+    private static void appendTerm(Appendable out, long bitmask) throws IOException {
+        boolean multiple = Long.bitCount(bitmask) > 1;
+        if (multiple) {
+            out.append('(');
+        }
+        for (long atoms = bitmask; atoms != 0; atoms &= atoms - 1) {
+            if (atoms != bitmask) {
+                out.append(" & ");
+            }
+            int atom = Long.numberOfTrailingZeros(atoms) + 1;
+            out.append('t');
+            appendInt(out, atom);
+            out.append("[o");
+            appendInt(out, atom);
+            out.append("[i]]");
+        }
+        if (multiple) {
+            out.append(')');
+        }
+    }
+
+    /**
+     * Writes the selectivities (see formatSelectivities) into the output.
+     */
+    private static void appendSelectivities(Appendable out, Float[] selectivities) throws IOException {
+        for (int i = 0; i < selectivities.length; i++) {
+            if (i > 0) {
+                out.append(' ');
+            }
+            appendFloat(out, selectivities[i]);
+        }
+    }
+
+    /**
+     * Writes a non-negative int in decimal into the output.
+     */
+    private static void appendInt(Appendable out, int value) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(value);
+            return;
+        }
+        int divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * Writes a float, formatted as by Float.toString, into the output.
+     */
+    private static void appendFloat(Appendable out, float value) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(value);
+        } else {
+            out.append(Float.toString(value));
+        }
+    }
+
+    private static final String DOUBLE_RULE =
+        "==================================================================\n";
+    private static final String SINGLE_RULE =
+        "------------------------------------------------------------------\n";
+
     private static final String STATISTICS_FMT =
-        "==================================================================\n"
+        DOUBLE_RULE
         + "%s\n"
-        + "------------------------------------------------------------------\n"
+        + SINGLE_RULE
         + "%s\n"
-        + "------------------------------------------------------------------\n"
+        + SINGLE_RULE
         + "cost: %s\n"
-        + "==================================================================\n";
+        + DOUBLE_RULE;
 
     private static final String NO_BRANCH_CODE_FLAT_FMT =
             "answer[j] = i;\n" +
@@ -1,6 +1,5 @@
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Properties;
 
 
 /**
@@ -15,6 +14,17 @@ class QueryPlan {
     float cost;
     QueryPlan left;
     QueryPlan right;
+    final CostModel model;
+
+    /**
+     * Creates a new QueryPlan for the default machine (see CostModel.DEFAULT)
+     *
+     * @param bitmask bitmask representation of condition subset
+     * @param selectivities array of selectivity values of the selection conditions
+     */
+    public QueryPlan(long bitmask, Float[] selectivities) {
+        this(bitmask, selectivities, CostModel.DEFAULT);
+    }
 
     /**
      * Creates a new QueryPlan from the input bitmask and selectivity array,
@@ -23,10 +33,12 @@ class QueryPlan {
      *
      * @param bitmask bitmask representation of condition subset
      * @param selectivities array of selectivity values of the selection conditions
+     * @param model costs of the machine we are optimizing for
      */
-    public QueryPlan(long bitmask, Float[] selectivities) {
+    public QueryPlan(long bitmask, Float[] selectivities, CostModel model) {
         /* set bitmask and selectivity product */
         this.bitmask = bitmask;
+        this.model = model;
         this.k = QueryOptimizerUtils.numberOfTerms(selectivities, bitmask);
         this.productOfSelectivities = QueryOptimizerUtils.productOfSelectivities(selectivities, bitmask);
 
@@ -37,6 +49,26 @@ class QueryPlan {
         this.cost = this.noBranchFlag ? noBranchCost : branchCost;
     }
 
+    /**
+     * Creates a new QueryPlan from values that have already been computed, e.g. by
+     * a PlanTable
+     *
+     * @param bitmask bitmask representation of condition subset
+     * @param k number of conditions in the subset
+     * @param productOfSelectivities product of the selectivities of the conditions
+     * @param noBranchFlag true if the no-branch algorithm is used for the last &-term
+     * @param cost cost of the plan
+     * @param model costs of the machine we are optimizing for
+     */
+    QueryPlan(long bitmask, int k, float productOfSelectivities, boolean noBranchFlag, float cost, CostModel model) {
+        this.bitmask = bitmask;
+        this.model = model;
+        this.k = k;
+        this.productOfSelectivities = productOfSelectivities;
+        this.noBranchFlag = noBranchFlag;
+        this.cost = cost;
+    }
+
     /**
      * @return value of Q for this plan in cost calculation
      */
@@ -132,17 +164,14 @@ class QueryPlan {
      * @return fixed cost of this plan
      */
     public float getFixedCost() {
-        float cost = 0;
-        /* kr + (k - 1)l */
-        cost += k * QueryOptimizerUtils.getR() + (k - 1) * QueryOptimizerUtils.getL();
-        /* f1 + ... + fk */
-        cost += k * QueryOptimizerUtils.getF();
-        /* + t ... */
-        cost += QueryOptimizerUtils.getT();
-        return cost;
+        return model.fixedCost(k);
     }
 
     /**
+     * Walks the tree as it is now, since children may be given children of their own after
+     * their parent was built. The search itself does not call this; PlanTable keeps the
+     * left-most leaf of each subset in an array instead.
+     *
      * @return the left-most leaf in the plan subtree
      */
     public QueryPlan getLeftMostTerm() {
@@ -157,18 +186,10 @@ class QueryPlan {
      * @return cost of plan if we do not use no-branch optimization
      */
     private float calculateCost() {
-        float cost = 0;
-        /* calculate q */
-        float q = getQ();
-
-        /* kr + (k - 1)l */
-        cost += k * QueryOptimizerUtils.getR() + (k - 1) * QueryOptimizerUtils.getL();
-        /* f1 + ... + fk */
-        cost += k * QueryOptimizerUtils.getF();
-        /* + t ... */
-        cost += QueryOptimizerUtils.getT();
+        /* kr + (k - 1)l + f1 + ... + fk + t */
+        float cost = model.fixedCost(k);
         /* mq + p1..pka */
-        cost += QueryOptimizerUtils.getM() * QueryOptimizerUtils.getA() + this.productOfSelectivities * QueryOptimizerUtils.getA();
+        cost += model.getM() * model.getA() + this.productOfSelectivities * model.getA();
         return cost;
     }
 
@@ -176,30 +197,24 @@ class QueryPlan {
      * @return cost of plan if we use no-branch optimization
      */
     private float calculateNoBranchCost() {
-        float cost = 0;
-        /* kr + (k - 1)l */
-        cost += k * QueryOptimizerUtils.getR() + (k - 1) * QueryOptimizerUtils.getL();
-        /* f1 + ... + fk */
-        cost += k * QueryOptimizerUtils.getF();
-        /* + a */
-        cost += QueryOptimizerUtils.getA();
-
-        return cost;
+        return model.noBranchCost(k);
     }
 
     public boolean subOptimalByCMetric(QueryPlan s2) {
         /* if p2 <= p1 and (p2 - 1/fcost(E2)) < (P1 - 1/Fcost(E1)) */
+        QueryPlan leftMostTerm = getLeftMostTerm();
         float p1 = s2.productOfSelectivities;
-        float p2 = getLeftMostTerm().productOfSelectivities;
-        float cmetric1 = (p2 - 1) / getLeftMostTerm().getFixedCost();
+        float p2 = leftMostTerm.productOfSelectivities;
+        float cmetric1 = (p2 - 1) / leftMostTerm.getFixedCost();
         float cmetric2 = (p1 - 1) / s2.getFixedCost();
         return p2 <= p1 && cmetric1 < cmetric2;
     }
 
     public boolean subOptimalByDMetric(QueryPlan s2) {
+        QueryPlan leftMostTerm = getLeftMostTerm();
     	float p1 = s2.productOfSelectivities;
-        float p2 = getLeftMostTerm().productOfSelectivities;
-        float dmetric1 = getLeftMostTerm().getFixedCost();
+        float p2 = leftMostTerm.productOfSelectivities;
+        float dmetric1 = leftMostTerm.getFixedCost();
         float dmetric2 = s2.getFixedCost();
         return p2 <= p1 && dmetric1 < dmetric2;
     }
@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * <p>
+ * Reads queries from a query file one at a time. Each line of the file is a query, given
+ * as a space-delimited list of the selectivities of its selection conditions:
+ * </p>
+ * <pre>
+ * 0.8 0.5 0.3 0.2
+ * 0.2 0.1 0.9
+ * </pre>
+ * <p>
+ * Blank lines are skipped. Only the line being parsed is held in memory, so arbitrarily
+ * large query files (or an endless stream on stdin) can be read in constant memory.
+ * </p>
+ */
+public class QueryReader implements Closeable {
+    /** file name that stands for the standard input */
+    public static final String STDIN = "-";
+
+    private final BufferedReader in;
+    private float[] buffer = new float[16];
+    private long lineNumber;
+
+    /**
+     * @param in stream to read queries from
+     */
+    public QueryReader(InputStream in) {
+        this.in = new BufferedReader(new InputStreamReader(in), 1 << 16);
+    }
+
+    /**
+     * @param queryFileName path to input file, or "-" for the standard input
+     * @return a reader for the queries in the file
+     * @throws IOException if the file cannot be opened
+     */
+    public static QueryReader open(String queryFileName) throws IOException {
+        return new QueryReader(STDIN.equals(queryFileName) ? System.in : new FileInputStream(queryFileName));
+    }
+
+    /**
+     * @return selectivities of the next query, or null if there are no more queries
+     * @throws IOException if the input cannot be read
+     * @throws NumberFormatException if a selectivity is not a number
+     */
+    public Float[] next() throws IOException {
+        String line;
+        int k;
+        do {
+            line = in.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+            k = parse(line);
+        } while (k == 0);
+
+        Float[] selectivities = new Float[k];
+        for (int i = 0; i < k; i++) {
+            selectivities[i] = buffer[i];
+        }
+        return selectivities;
+    }
+
+    /**
+     * @return true if the next query can be read without blocking on the input
+     * @throws IOException if the input cannot be read
+     */
+    public boolean ready() throws IOException {
+        return in.ready();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Parses the selectivities on the line into the buffer.
+     *
+     * @return number of selectivities on the line
+     */
+    private int parse(String line) {
+        int k = 0;
+        int length = line.length();
+        int start = 0;
+        while (start < length) {
+            /* skip separators */
+            while (start < length && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            if (start == length) {
+                break;
+            }
+            int end = start;
+            while (end < length && !Character.isWhitespace(line.charAt(end))) {
+                end++;
+            }
+            if (k == buffer.length) {
+                float[] larger = new float[2 * k];
+                System.arraycopy(buffer, 0, larger, 0, k);
+                buffer = larger;
+            }
+            try {
+                buffer[k++] = Float.parseFloat(line.substring(start, end));
+            } catch (NumberFormatException exception) {
+                throw new NumberFormatException("line " + lineNumber + ": invalid selectivity \""
+                        + line.substring(start, end) + "\"");
+            }
+            start = end;
+        }
+        return k;
+    }
+}
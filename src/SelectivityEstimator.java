@@ -0,0 +1,143 @@
+import java.util.Random;
+
+/**
+ * <p>
+ * Estimates the selectivities of selection conditions from the data they are evaluated
+ * on (see PlanExecutor for its layout), so that queries can be optimized without
+ * supplying the selectivities by hand. The selectivity of f_n is the fraction of records
+ * i for which t_n[o_n[i]] is 1. There are two ways of estimating it:
+ * </p>
+ * <ul>
+ * <li>
+ * sample(...) tests a random sample of the records against every condition. Its cost
+ * only depends on the size of the sample, and its error shrinks with the square root of
+ * that size.
+ * </li>
+ * <li>
+ * An instance keeps a histogram of the offsets of each condition, i.e. how many records
+ * point at each entry of its predicate table. The histograms are updated as records are
+ * appended, in time proportional to the number of new records, and give the exact
+ * selectivities in time proportional to the size of the predicate tables, even after
+ * the contents of the tables have changed.
+ * </li>
+ * </ul>
+ * <p>
+ * Either way, the estimates come out as the Float[] of selectivities that a
+ * QueryOptimizer takes.
+ * </p>
+ */
+public class SelectivityEstimator {
+    private final byte[][] tables;
+    /** number of records pointing at each entry of each predicate table */
+    private final long[][] histograms;
+    private long records;
+
+    /**
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     */
+    public SelectivityEstimator(byte[][] tables) {
+        this.tables = tables;
+        this.histograms = new long[tables.length][];
+        for (int n = 0; n < tables.length; n++) {
+            histograms[n] = new long[tables[n].length];
+        }
+    }
+
+    /**
+     * Adds the records in [from, to) to the histograms.
+     *
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @param from index of the first record to add
+     * @param to index after the last record to add
+     */
+    public void append(int[][] offsets, int from, int to) {
+        if (offsets.length < tables.length) {
+            throw new IllegalArgumentException(tables.length + " offset arrays expected, "
+                    + offsets.length + " given");
+        }
+        for (int n = 0; n < tables.length; n++) {
+            long[] histogram = histograms[n];
+            int[] o = offsets[n];
+            for (int i = from; i < to; i++) {
+                histogram[o[i]]++;
+            }
+        }
+        records += to - from;
+    }
+
+    /**
+     * @return number of records added to the histograms
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return selectivity of every selection condition over the records added so far,
+     * with the current contents of the predicate tables
+     * @throws IllegalStateException if no records have been added
+     */
+    public Float[] estimate() {
+        int[] all = new int[tables.length];
+        for (int n = 0; n < all.length; n++) {
+            all[n] = n;
+        }
+        return estimate(all);
+    }
+
+    /**
+     * @param conditions indices (0-based) of the selection conditions of a query
+     * @return selectivity of each of the conditions over the records added so far, with
+     * the current contents of the predicate tables
+     * @throws IllegalStateException if no records have been added
+     */
+    public Float[] estimate(int... conditions) {
+        if (records == 0) {
+            throw new IllegalStateException("no records to estimate selectivities from");
+        }
+        Float[] selectivities = new Float[conditions.length];
+        for (int c = 0; c < conditions.length; c++) {
+            byte[] table = tables[conditions[c]];
+            long[] histogram = histograms[conditions[c]];
+            long passed = 0;
+            for (int x = 0; x < table.length; x++) {
+                passed += histogram[x] * table[x];
+            }
+            selectivities[c] = (float) ((double) passed / records);
+        }
+        return selectivities;
+    }
+
+    /**
+     * Estimates the selectivities from a random sample of the records. The same records
+     * are tested against every condition.
+     *
+     * @param tables predicate table t_n of each selection condition f_n, holding 0 or 1
+     * @param offsets offset array o_n of each selection condition, one entry per record
+     * @param sampleSize number of records to test, drawn with replacement
+     * @param random source of the sample
+     * @return estimated selectivity of every selection condition
+     * @throws IllegalArgumentException if there are no records to sample
+     */
+    public static Float[] sample(byte[][] tables, int[][] offsets, int sampleSize, Random random) {
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("sample size must be positive: " + sampleSize);
+        }
+        int records = offsets.length == 0 ? 0 : offsets[0].length;
+        if (records == 0) {
+            throw new IllegalArgumentException("no records to sample selectivities from");
+        }
+        long[] passed = new long[tables.length];
+        for (int s = 0; s < sampleSize; s++) {
+            int i = random.nextInt(records);
+            for (int n = 0; n < tables.length; n++) {
+                passed[n] += tables[n][offsets[n][i]];
+            }
+        }
+        Float[] selectivities = new Float[tables.length];
+        for (int n = 0; n < tables.length; n++) {
+            selectivities[n] = (float) passed[n] / sampleSize;
+        }
+        return selectivities;
+    }
+}
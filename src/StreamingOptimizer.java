@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Optimizes queries as they are read and writes out the statistics for each one as soon
+ * as it (and every query before it) is done, so memory use does not depend on the size
+ * of the input and results start flowing before the input has been fully read.
+ * </p>
+ * <p>
+ * With more than one thread, up to WINDOW_PER_THREAD queries per worker are optimized
+ * ahead of the oldest unfinished one. Once the window is full, reading stops until the
+ * oldest query has been written, so a slow consumer of the output holds back the input
+ * instead of letting results pile up in memory. Output is flushed whenever the input
+ * has nothing more buffered, so interactive use (e.g. a pipe) sees results immediately.
+ * </p>
+ */
+public class StreamingOptimizer {
+    /** queries optimized ahead of the oldest unwritten one, per worker */
+    private static final int WINDOW_PER_THREAD = 4;
+
+    private final CostModel model;
+    private final PlanCache cache;
+    private final int threads;
+    private final boolean parallelDp;
+    private final int maxExhaustiveTerms;
+
+    /**
+     * @param model costs of the machine we are optimizing for
+     * @param cache cache of finished plans, or null
+     * @param threads number of worker threads to optimize queries on
+     * @param parallelDp true to optimize one query at a time on all of the workers
+     * (see QueryOptimizer.optimize(ForkJoinPool)), instead of one query per worker
+     */
+    public StreamingOptimizer(CostModel model, PlanCache cache, int threads, boolean parallelDp) {
+        this(model, cache, threads, parallelDp, QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS);
+    }
+
+    /**
+     * @param model costs of the machine we are optimizing for
+     * @param cache cache of finished plans, or null
+     * @param threads number of worker threads to optimize queries on
+     * @param parallelDp true to optimize one query at a time on all of the workers
+     * @param maxExhaustiveTerms largest number of selection conditions to search exhaustively
+     */
+    public StreamingOptimizer(CostModel model, PlanCache cache, int threads, boolean parallelDp,
+            int maxExhaustiveTerms) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive: " + threads);
+        }
+        this.model = model;
+        this.cache = cache;
+        this.threads = threads;
+        this.parallelDp = parallelDp;
+        this.maxExhaustiveTerms = maxExhaustiveTerms;
+    }
+
+    /**
+     * Optimizes every query from the reader, writing the statistics for each to the writer
+     * in input order.
+     *
+     * @param in queries to optimize
+     * @param out destination of the formatted statistics
+     * @throws IOException if reading the queries or writing the statistics fails
+     */
+    public void run(QueryReader in, Writer out) throws IOException {
+        if (threads == 1) {
+            runSerial(in, out, null);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (parallelDp) {
+                runSerial(in, out, pool);
+            } else {
+                runWindowed(in, out, pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Optimizes one query at a time, on the pool if there is one.
+     */
+    private void runSerial(QueryReader in, Writer out, ForkJoinPool pool) throws IOException {
+        for (Float[] selectivities = in.next(); selectivities != null; selectivities = in.next()) {
+            QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, cache, maxExhaustiveTerms);
+            if (pool == null) {
+                o.optimize();
+            } else {
+                o.optimize(pool);
+            }
+            o.appendFormattedStatistics(out);
+            if (!in.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Optimizes a window of queries at a time on the pool, one query per worker.
+     */
+    private void runWindowed(QueryReader in, Writer out, ForkJoinPool pool) throws IOException {
+        ArrayDeque<Future<String>> window = new ArrayDeque<Future<String>>();
+        int capacity = threads * WINDOW_PER_THREAD;
+        for (Float[] selectivities = in.next(); selectivities != null; selectivities = in.next()) {
+            /* wait for the oldest query if the window is full */
+            if (window.size() == capacity) {
+                out.write(await(window.poll()));
+            }
+            window.add(pool.submit(new OptimizeQuery(selectivities, model, cache, maxExhaustiveTerms)));
+
+            /* write out everything at the head of the window that is already done */
+            while (!window.isEmpty() && window.peek().isDone()) {
+                out.write(await(window.poll()));
+            }
+
+            /* if we would block on the input, finish what we have first */
+            if (!in.ready()) {
+                while (!window.isEmpty()) {
+                    out.write(await(window.poll()));
+                }
+                out.flush();
+            }
+        }
+        while (!window.isEmpty()) {
+            out.write(await(window.poll()));
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the statistics computed by the task
+     */
+    private static String await(Future<String> statistics) throws IOException {
+        try {
+            return statistics.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while optimizing", exception);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Optimizes a single query and formats its statistics.
+     */
+    private static class OptimizeQuery implements Callable<String> {
+        private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+            @Override
+            protected StringBuilder initialValue() {
+                return new StringBuilder(512);
+            }
+        };
+
+        private final Float[] selectivities;
+        private final CostModel model;
+        private final PlanCache cache;
+        private final int maxExhaustiveTerms;
+
+        OptimizeQuery(Float[] selectivities, CostModel model, PlanCache cache, int maxExhaustiveTerms) {
+            this.selectivities = selectivities;
+            this.model = model;
+            this.cache = cache;
+            this.maxExhaustiveTerms = maxExhaustiveTerms;
+        }
+
+        @Override
+        public String call() throws IOException {
+            QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, cache, maxExhaustiveTerms);
+            o.optimize();
+
+            /* render into this worker's buffer, so only the final string is allocated */
+            StringBuilder statistics = BUFFER.get();
+            statistics.setLength(0);
+            o.appendFormattedStatistics(statistics);
+            return statistics.toString();
+        }
+    }
+}
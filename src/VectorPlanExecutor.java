@@ -0,0 +1,107 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * <p>
+ * PlanExecutor that evaluates a block of records at once with the Vector API, one
+ * record per lane of the widest int vectors of the CPU. For each &-term, the table
+ * entries of the block are gathered and combined with a logical-and across lanes, so
+ * the conditions within an &-term are evaluated without branching, exactly as in the
+ * scalar code. The branching-ands (&&) between &-terms become one branch per block: a
+ * term is only evaluated if some record of the block is still passing, and a no-branch
+ * last term is evaluated for the whole block. The indices of the records that pass are
+ * then compacted into the answer array, so the answer is the same as that of the scalar
+ * executor. Records past the last full block are evaluated by the scalar code.
+ * </p>
+ * <p>
+ * Int gathers are much faster than byte gathers, so each scan starts by making an int
+ * copy of each table the plan reads (see prepare), which every block of the scan, and
+ * every partition of a ParallelPlanExecutor scan, then reads. The copies are dropped
+ * with the scan, so the tables may be updated in place between scans.
+ * </p>
+ * <p>
+ * The Vector API is an incubator module, so this class is compiled and run with
+ * --add-modules jdk.incubator.vector, and only instantiated (by PlanExecutor.forPlan)
+ * if the module is present at run time.
+ * </p>
+ */
+class VectorPlanExecutor extends PlanExecutor {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * @param plan root of the plan tree to run
+     */
+    VectorPlanExecutor(QueryPlan plan) {
+        super(plan);
+    }
+
+    @Override
+    public int execute(byte[][] tables, int[][] offsets, int from, int to, int[] answer, int j) {
+        return execute(prepare(tables), tables, offsets, from, to, answer, j);
+    }
+
+    /**
+     * @return int copies of the tables the plan reads, for the calls of a scan
+     */
+    @Override
+    Object prepare(byte[][] tables) {
+        int[][] wide = new int[tables.length][];
+        for (int[] term : terms) {
+            for (int atom : term) {
+                if (wide[atom] == null) {
+                    wide[atom] = new int[tables[atom].length];
+                    for (int x = 0; x < wide[atom].length; x++) {
+                        wide[atom][x] = tables[atom][x];
+                    }
+                }
+            }
+        }
+        return wide;
+    }
+
+    @Override
+    int execute(Object prepared, byte[][] tables, int[][] offsets, int from, int to, int[] answer, int j) {
+        int lanes = SPECIES.length();
+        int branchTerms = noBranch ? terms.length - 1 : terms.length;
+        int[] last = terms[terms.length - 1];
+        int[][] wide = (int[][]) prepared;
+
+        int i = from;
+        blocks:
+        for (; i + lanes <= to; i += lanes) {
+            /* && between the &-terms, for the whole block */
+            VectorMask<Integer> pass = SPECIES.maskAll(true);
+            for (int n = 0; n < branchTerms; n++) {
+                pass = pass.and(evaluate(terms[n], wide, offsets, i).compare(VectorOperators.NE, 0));
+                if (!pass.anyTrue()) {
+                    continue blocks;
+                }
+            }
+            if (noBranch) {
+                pass = pass.and(evaluate(last, wide, offsets, i).compare(VectorOperators.NE, 0));
+            }
+
+            /* compact the indices of the records that passed */
+            for (long bits = pass.toLong(); bits != 0; bits &= bits - 1) {
+                answer[j++] = i + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        /* the scalar code, for the records past the last full block */
+        return super.execute(tables, offsets, i, to, answer, j);
+    }
+
+    /**
+     * @return the &-term for each record of the block starting at record i, 1 if it
+     * holds and 0 if not
+     */
+    private static IntVector evaluate(int[] term, int[][] wide, int[][] offsets, int i) {
+        IntVector pass = IntVector.fromArray(SPECIES, wide[term[0]], 0, offsets[term[0]], i);
+        for (int n = 1; n < term.length; n++) {
+            /* & within the &-term */
+            pass = pass.and(IntVector.fromArray(SPECIES, wide[term[n]], 0, offsets[term[n]], i));
+        }
+        return pass;
+    }
+}
@@ -1,2 +1,16 @@
 #!/bin/bash
-java QueryOptimizer $1 $2
\ No newline at end of file
+# If an optimizer server is running (java OptimizerServer) with the default
+# options, send plain "query_file config.txt" calls to it over the loopback
+# interface, which saves starting a JVM; otherwise, or with any options,
+# optimize here.
+port=${OPTIMIZER_PORT:-4711}
+if [ $# -eq 2 ] && { [ "$1" = - ] || [ -r "$1" ]; } && [ -r "$2" ] \
+        && { exec 3<>/dev/tcp/127.0.0.1/$port; } 2>/dev/null \
+        && echo d >&3 && read -r reply <&3 && [ "$reply" = ok ]; then
+    { awk '{ print "c " $0 }' "$2"; awk '{ print "q " $0 }' "$1"; echo .; } >&3
+    cat <&3
+    exec 3<&-
+    exit 0
+fi
+exec 3<&-
+java QueryOptimizer "$@"
@@ -0,0 +1,39 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class AdaptiveExecutorTest {
+    private static final int RECORDS = 1 << 18;
+
+    @Test
+    public void testSwitchesOnWrongEstimates() {
+        /* the estimates are the reverse of the real selectivities */
+        Float[] actual = new Float[]{0.05f, 0.5f, 0.95f, 0.9f};
+        Float[] estimates = new Float[]{0.95f, 0.9f, 0.05f, 0.5f};
+        Random random = new Random(3);
+        byte[][] tables = TestTables.createTables(actual, random);
+        int[][] offsets = TestTables.createOffsets(actual.length, RECORDS, random);
+
+        AdaptiveExecutor executor = new AdaptiveExecutor(estimates, CostModel.DEFAULT, 1 << 14, 0.1f);
+        assertArrayEquals(TestTables.reference(tables, offsets), executor.execute(tables, offsets));
+        assertEquals(1, executor.getSwitches());
+        assertTrue(executor.getEstimatedSavings() > 0);
+        assertEquals(0.05f, executor.getObservedSelectivities()[0], 0.02f);
+    }
+
+    @Test
+    public void testKeepsPlanOnGoodEstimates() {
+        Float[] actual = new Float[]{0.05f, 0.5f, 0.95f, 0.9f};
+        Random random = new Random(5);
+        byte[][] tables = TestTables.createTables(actual, random);
+        int[][] offsets = TestTables.createOffsets(actual.length, RECORDS, random);
+
+        AdaptiveExecutor executor = new AdaptiveExecutor(actual, CostModel.DEFAULT, 1 << 14, 0.1f);
+        assertArrayEquals(TestTables.reference(tables, offsets), executor.execute(tables, offsets));
+        assertEquals(0, executor.getSwitches());
+        assertEquals(0, executor.getEstimatedSavings(), 0);
+    }
+}
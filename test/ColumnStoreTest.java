@@ -0,0 +1,103 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ColumnStoreTest {
+    private static final int RECORDS = 50000;
+
+    @Test
+    public void testExecuteFromStore() throws IOException {
+        Random random = new Random(20);
+        Float[] selectivities = new Float[]{0.7f, 0.2f, 0.9f, 0.5f, 0.4f};
+        byte[][] tables = TestTables.createTables(selectivities, random);
+        int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+        File directory = createDirectory();
+        ParallelPlanExecutor parallel = new ParallelPlanExecutor(2);
+        try {
+            ColumnStore.write(directory, tables, offsets);
+            ColumnStore store = ColumnStore.open(directory);
+            assertEquals(selectivities.length, store.getConditions());
+            assertEquals(RECORDS, store.getRecords());
+            assertEquals(offsets[3][RECORDS - 1], store.getOffsets(3).get(RECORDS - 1));
+
+            CostModel[] models = {CostModel.DEFAULT, new CostModel(1, 2, 1, 50, 2, 1)};
+            for (CostModel model : models) {
+                QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+                o.optimize();
+                PlanExecutor executor = new PlanExecutor(o.getPlan());
+                int[] expected = executor.execute(tables, offsets);
+                assertArrayEquals(expected, executor.execute(store));
+                assertArrayEquals(expected, parallel.execute(o.getPlan(), store));
+            }
+        } finally {
+            parallel.shutdown();
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testCreateAndFill() throws IOException {
+        File directory = createDirectory();
+        try {
+            ColumnStore store = ColumnStore.create(directory, new int[]{4, 2}, 3);
+            store.getTable(0).put(2, (byte) 1);
+            store.getTable(1).put(1, (byte) 1);
+            store.getOffsets(0).put(0, 2).put(1, 2).put(2, 0);
+            store.getOffsets(1).put(0, 1).put(1, 0).put(2, 1);
+            store.force();
+
+            /* f1 & f2 holds for record 0 only */
+            Float[] selectivities = new Float[]{0.5f, 0.5f};
+            int[] answer = new PlanExecutor(new QueryPlan(0x0003, selectivities)).execute(ColumnStore.open(directory));
+            assertArrayEquals(new int[]{0}, answer);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void testCreateReplacesLargerStore() throws IOException {
+        File directory = createDirectory();
+        try {
+            ColumnStore.create(directory, new int[]{4, 2, 8}, 5).force();
+            ColumnStore.create(directory, new int[]{2}, 3).force();
+            ColumnStore store = ColumnStore.open(directory);
+            assertEquals(1, store.getConditions());
+            assertEquals(3, store.getRecords());
+            assertEquals(2, directory.listFiles().length);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenEmpty() throws IOException {
+        File directory = createDirectory();
+        try {
+            ColumnStore.open(directory);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("columns", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
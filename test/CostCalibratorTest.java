@@ -0,0 +1,21 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Test;
+
+
+public class CostCalibratorTest {
+
+    @Test
+    public void testWritesLoadableConfig() throws Exception {
+        CostModel model = new CostCalibrator(1 << 14).calibrate(2.0);
+        File config = File.createTempFile("calibrated", ".txt");
+        try {
+            CostCalibrator.write(model, config, "test");
+            assertEquals(model, CostModel.load(config));
+        } finally {
+            config.delete();
+        }
+    }
+}
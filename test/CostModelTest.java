@@ -0,0 +1,58 @@
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class CostModelTest {
+    private Properties config;
+
+    private static final Float[] selectivities5 = new Float[]{0.5f, 0.2f, 0.8f, 0.2f, 0.4f};
+
+    @Before
+    public void setUp() {
+        /* config.txt */
+        config = new Properties();
+        config.setProperty("r", "1");
+        config.setProperty("t", "2");
+        config.setProperty("l", "1");
+        config.setProperty("m", "16");
+        config.setProperty("a", "2");
+        config.setProperty("f", "4");
+    }
+
+    @Test
+    public void testFromProperties() {
+        CostModel model = CostModel.fromProperties(config);
+        assertEquals(CostModel.DEFAULT, model);
+        /* 3r + 2l + 3f + t */
+        assertEquals(19.0f, model.fixedCost(3), 0);
+        /* 3r + 2l + 3f + a */
+        assertEquals(19.0f, model.noBranchCost(3), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingParameter() {
+        config.remove("m");
+        CostModel.fromProperties(config);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeParameter() {
+        config.setProperty("f", "-4");
+        CostModel.fromProperties(config);
+    }
+
+    @Test
+    public void testIndependentModels() {
+        /* config2.txt */
+        CostModel model2 = new CostModel(2, 2, 1, 5, 2, 5);
+        QueryPlan p = new QueryPlan(0x0015, selectivities5, CostModel.DEFAULT);
+        QueryPlan p2 = new QueryPlan(0x0015, selectivities5, model2);
+        assertEquals(19.0f, p.getFixedCost(), 0);
+        assertEquals(25.0f, p2.getFixedCost(), 0);
+    }
+
+}
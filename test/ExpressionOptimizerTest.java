@@ -0,0 +1,111 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+
+public class ExpressionOptimizerTest {
+    private static final CostModel model = CostModel.DEFAULT;
+
+    @Test
+    public void testParse() {
+        assertEquals("(1 & 2) | 3", BooleanExpression.parse("3 || (2 && 1)", 3).toString());
+        assertEquals("1 & 2 & 3", BooleanExpression.parse("1 & (2 & (3))", 3).toString());
+        assertEquals(0x7, BooleanExpression.parse("1 | 2 & 3", 3).bitmask);
+        assertEquals(BooleanExpression.OR, BooleanExpression.parse("1 | 2 & 3", 3).operator);
+
+        String[] invalid = {"", "1 &", "(1 | 2", "1 2", "1 & 4", "0", "1 & 1", "1 | (2 & 1)"};
+        for (String text : invalid) {
+            try {
+                BooleanExpression.parse(text, 3);
+                fail(text);
+            } catch (IllegalArgumentException exception) {
+                /* expected */
+            }
+        }
+    }
+
+    @Test
+    public void testConjunctionCostsMatchAlgorithm411() {
+        Float[][] queries = {
+            {0.5f, 0.2f, 0.2f, 0.2f},
+            {0.7f, 0.8f, 0.8f, 0.9f},
+            {0.43f, 0.04f, 0.19f, 0.35f, 0.15f, 0.94f, 0.24f, 0.45f, 0.98f},
+            {0.3f}
+        };
+        CostModel[] models = {model, new CostModel(1, 2, 1, 50, 2, 1)};
+        for (CostModel m : models) {
+            for (Float[] selectivities : queries) {
+                QueryOptimizer o = QueryOptimizer.forQuery(selectivities, m, null);
+                o.optimize();
+                ExpressionPlan plan = ExpressionOptimizer.optimize(BooleanExpression.conjunction(selectivities.length),
+                        selectivities, m);
+                assertEquals(o.getPlan().cost, plan.cost, 1e-4f * plan.cost);
+            }
+        }
+    }
+
+    @Test
+    public void testNestedDisjunction() {
+        /* test f1 with a branch, and only compute f2 | f3 for the 5% of records that pass */
+        ExpressionPlan plan = ExpressionOptimizer.optimize(BooleanExpression.parse("1 & (2 | 3)", 3),
+                new Float[]{0.05f, 0.5f, 0.5f}, model);
+        assertEquals("if(t1[o1[i]]) {\n"
+                + "    answer[j] = i;\n"
+                + "    j += ((t2[o2[i]] | t3[o3[i]]));\n"
+                + "}\n", plan.getFormattedCode());
+        /* (r + f + t + m p1) + p1 (2 (r + f) + l + a) */
+        assertEquals(5 + 2 + 16 * 0.05f + 0.05f * (11 + 2), plan.cost, 1e-4);
+    }
+
+    @Test
+    public void testDisjunctionTestsLikelyConditionFirst() {
+        String statistics = ExpressionOptimizer.optimize("0.01 0.02 0.03 0.99 : 1 | 2 | 3 | 4", model);
+        assertTrue(statistics, statistics.contains("if(t4[o4[i]] || (t1[o1[i]] | t2[o2[i]] | t3[o3[i]])) {"));
+        assertTrue(statistics, statistics.contains("0.01 0.02 0.03 0.99 : 1 | 2 | 3 | 4\n"));
+    }
+
+    @Test
+    public void testEveryConditionMustBeUsed() {
+        try {
+            ExpressionOptimizer.optimize("0.2 0.5 0.3 : 1 | 2", model);
+            fail();
+        } catch (IllegalArgumentException exception) {
+            assertEquals("selection condition 3 is not used in \"1 | 2\"", exception.getMessage());
+        }
+    }
+
+    @Test
+    public void testPlainLineMatchesQueryOptimizer() {
+        Float[] selectivities = {0.5f, 0.2f, 0.2f, 0.2f};
+        QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+        o.optimize();
+        assertEquals(o.getFormattedStatistics(), ExpressionOptimizer.optimize("0.5 0.2 0.2 0.2", model));
+        assertNull(ExpressionOptimizer.optimize("  ", model));
+    }
+
+    @Test
+    public void testManyOperands() {
+        /* more operands than are searched exhaustively, nested in an AND */
+        int k = ExpressionOptimizer.MAX_EXHAUSTIVE_OPERANDS + 6;
+        Float[] selectivities = new Float[k + 1];
+        StringBuilder text = new StringBuilder("(1");
+        for (int i = 0; i < k; i++) {
+            selectivities[i] = 0.01f * (i + 1);
+            if (i > 0) {
+                text.append(" | ").append(i + 1);
+            }
+        }
+        selectivities[k] = 0.5f;
+        text.append(") & ").append(k + 1);
+        BooleanExpression expression = BooleanExpression.parse(text.toString(), k + 1);
+        ExpressionPlan plan = ExpressionOptimizer.optimize(expression, selectivities, model);
+
+        /* no worse than computing the whole expression without branching */
+        float noBranch = (k + 1) * (model.getR() + model.getF()) + k * model.getL() + model.getA();
+        assertTrue(plan.cost <= noBranch);
+        assertEquals(expression.selectivity(selectivities), plan.selectivity, 1e-6);
+        for (int i = 1; i <= k + 1; i++) {
+            assertTrue(plan.getFormattedCode().contains(QueryOptimizerUtils.formatAtom(i)));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class HeuristicOptimizerTest {
+
+    @Test
+    public void testMatchesExhaustiveCost() {
+        Random random = new Random(42);
+        for (int query = 0; query < 200; query++) {
+            Float[] selectivities = new Float[1 + random.nextInt(10)];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = Math.round(random.nextFloat() * 100) / 100f;
+            }
+            QueryOptimizer exhaustive = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+            exhaustive.optimize();
+            QueryOptimizer heuristic = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null, 0);
+            heuristic.optimize();
+            assertEquals(exhaustive.getPlan().cost, heuristic.getPlan().cost, 1e-4f);
+        }
+    }
+
+    @Test
+    public void testCoversEveryCondition() {
+        Float[] selectivities = new Float[64];
+        for (int i = 0; i < selectivities.length; i++) {
+            selectivities[i] = (i % 10) / 10f;
+        }
+        QueryOptimizer o = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+        o.optimize();
+        assertEquals(-1L, o.getPlan().bitmask);
+        assertTrue(o.getFormattedStatistics().contains("t64[o64[i]]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyConditions() {
+        HeuristicOptimizer.optimize(new Float[65], CostModel.DEFAULT);
+    }
+}
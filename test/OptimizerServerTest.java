@@ -0,0 +1,139 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class OptimizerServerTest {
+
+    @Test
+    public void testMatchesQueryOptimizer() throws Exception {
+        final OptimizerServer server = new OptimizerServer(CostModel.DEFAULT, null, 2, 20, 100);
+        final int port = server.bind(0);
+        Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        });
+        serving.start();
+        try {
+            String[] queries = {"0.8 0.5 0.3 0.2", "0.2 0.1 0.9", "", "0.6 0.75 0.8 1 0.9"};
+            StringBuilder expected = new StringBuilder();
+            for (String query : queries) {
+                if (query.isEmpty()) {
+                    continue;
+                }
+                String[] values = query.split(" ");
+                Float[] selectivities = new Float[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    selectivities[i] = Float.parseFloat(values[i]);
+                }
+                QueryOptimizer o = QueryOptimizer.forQuery(selectivities, new CostModel(1, 2, 1, 50, 2, 1), null);
+                o.optimize();
+                expected.append(o.getFormattedStatistics());
+            }
+            final StringBuilder request = new StringBuilder("c # config2\nc r = 1\nc t = 2\nc l = 1\nc m = 50\nc a = 2\nc f = 1\n");
+            for (String query : queries) {
+                request.append("q ").append(query).append('\n');
+            }
+            request.append(".\n");
+
+            /* concurrent clients end up in the same batches */
+            final List<String> answers = new ArrayList<String>();
+            List<Thread> clients = new ArrayList<Thread>();
+            for (int client = 0; client < 4; client++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            String answer = send(port, request.toString());
+                            synchronized (answers) {
+                                answers.add(answer);
+                            }
+                        } catch (IOException exception) {
+                            throw new IllegalStateException(exception);
+                        }
+                    }
+                });
+                thread.start();
+                clients.add(thread);
+            }
+            for (Thread thread : clients) {
+                thread.join();
+            }
+            assertEquals(4, answers.size());
+            for (String answer : answers) {
+                assertEquals(expected.toString(), answer);
+            }
+
+            assertEquals("line 1: invalid selectivity \"x\"\n", send(port, "q 0.5 x\n.\n"));
+            assertEquals("missing value for t\n", send(port, "c r = 1\nq 0.5\n.\n"));
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    @Test
+    public void testDefaultsRequest() throws Exception {
+        OptimizerServer[] servers = {
+            new OptimizerServer(CostModel.DEFAULT, null, 1, QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS, 0),
+            new OptimizerServer(CostModel.DEFAULT, new PlanCache(1 << 20, 0, null), 1,
+                    QueryOptimizer.DEFAULT_MAX_EXHAUSTIVE_TERMS, 0),
+            new OptimizerServer(CostModel.DEFAULT, null, 1, 4, 0)
+        };
+        QueryOptimizer o = QueryOptimizer.forQuery(new Float[]{0.5f, 0.2f}, CostModel.DEFAULT, null);
+        o.optimize();
+        for (int i = 0; i < servers.length; i++) {
+            final OptimizerServer server = servers[i];
+            int port = server.bind(0);
+            Thread serving = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    server.serve();
+                }
+            });
+            serving.start();
+            try {
+                String answer = send(port, "d\nq 0.5 0.2\n.\n");
+                if (i == 0) {
+                    assertEquals("ok\n" + o.getFormattedStatistics(), answer);
+                } else {
+                    /* a cache or a heuristic search may change the plans */
+                    assertFalse(answer, answer.startsWith("ok\n"));
+                    assertFalse(answer, answer.contains("answer"));
+                }
+            } finally {
+                server.close();
+                serving.join();
+            }
+        }
+    }
+
+    private static String send(int port, String request) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes("UTF-8"));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                answer.write(buffer, 0, n);
+            }
+            return answer.toString("UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class ParallelPlanExecutorTest {
+    @Test
+    public void testMatchesSingleThreaded() {
+        Random random = new Random(19);
+        CostModel[] models = {CostModel.DEFAULT, new CostModel(1, 2, 1, 50, 2, 1)};
+        ParallelPlanExecutor parallel = new ParallelPlanExecutor(3);
+        try {
+            /* several partitions, a partial last partition, and fewer records than a partition */
+            int[] sizes = {200000, 100003, 777, 0};
+            for (int records : sizes) {
+                for (int query = 0; query < 10; query++) {
+                    Float[] selectivities = new Float[1 + random.nextInt(6)];
+                    for (int i = 0; i < selectivities.length; i++) {
+                        selectivities[i] = random.nextFloat();
+                    }
+                    /* more records pass than the plan expects, so buffers must grow */
+                    Float[] actual = new Float[selectivities.length];
+                    for (int n = 0; n < actual.length; n++) {
+                        actual[n] = Math.min(1, selectivities[n] * 2);
+                    }
+                    byte[][] tables = TestTables.createTables(actual, random);
+                    int[][] offsets = TestTables.createOffsets(selectivities.length, records, random);
+                    for (CostModel model : models) {
+                        QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+                        o.optimize();
+                        int[] expected = new PlanExecutor(o.getPlan()).execute(tables, offsets);
+                        assertArrayEquals(o.getFormattedStatistics(), expected,
+                                parallel.execute(o.getPlan(), tables, offsets));
+                    }
+                }
+            }
+        } finally {
+            parallel.shutdown();
+        }
+    }
+}
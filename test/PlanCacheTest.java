@@ -0,0 +1,100 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+
+public class PlanCacheTest {
+    private static final Float[] selectivities4 = new Float[]{0.5f, 0.2f, 0.2f, 0.2f};
+    private static final Float[] selectivities4b = new Float[]{0.51f, 0.2f, 0.19f, 0.2f};
+
+    @Test
+    public void testHitSkipsOptimization() {
+        PlanCache cache = new PlanCache(1 << 20, 0);
+        List<Float[]> queries = Arrays.asList(selectivities4, selectivities4.clone());
+        QueryOptimizer[] o = QueryOptimizer.fromList(queries, CostModel.DEFAULT, cache);
+        o[0].optimize();
+        o[1].optimize();
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(o[0].getFormattedStatistics(), o[1].getFormattedStatistics());
+    }
+
+    @Test
+    public void testPrecision() {
+        PlanCache exact = new PlanCache(1 << 20, 0);
+        PlanCache rounded = new PlanCache(1 << 20, 0.05f);
+        assertFalse(exact.keyOf(selectivities4, CostModel.DEFAULT).equals(exact.keyOf(selectivities4b, CostModel.DEFAULT)));
+        assertTrue(rounded.keyOf(selectivities4, CostModel.DEFAULT).equals(rounded.keyOf(selectivities4b, CostModel.DEFAULT)));
+    }
+
+    @Test
+    public void testCostModelIsPartOfKey() {
+        PlanCache cache = new PlanCache(1 << 20, 0);
+        CostModel model2 = new CostModel(2, 2, 1, 5, 2, 5);
+        assertFalse(cache.keyOf(selectivities4, CostModel.DEFAULT).equals(cache.keyOf(selectivities4, model2)));
+    }
+
+    @Test
+    public void testCanonicalSharesReorderedQueries() {
+        /* products of these selectivities are exact in any order, so the plans match exactly */
+        Float[] query = new Float[]{0.5f, 0.25f, 0.75f, 0.125f, 0.875f};
+        Float[] reordered = new Float[]{0.125f, 0.875f, 0.5f, 0.75f, 0.25f};
+        CostModel model = new CostModel(1, 2, 1, 50, 2, 1);
+        PlanCache cache = new PlanCache(1 << 20, 0, true, null);
+        assertEquals(cache.keyOf(query, model), cache.keyOf(reordered, model));
+
+        QueryOptimizer first = QueryOptimizer.forQuery(query, model, cache);
+        first.optimize();
+        QueryOptimizer second = QueryOptimizer.forQuery(reordered, model, cache);
+        second.optimize();
+        assertEquals(1, cache.getHits());
+        assertEquals(0, second.getPairsConsidered());
+
+        QueryOptimizer direct = QueryOptimizer.forQuery(reordered, model, null);
+        direct.optimize();
+        assertEquals(direct.getFormattedStatistics(), second.getFormattedStatistics());
+
+        /* the plan is still cached in the order of the key, not in that of the last query */
+        QueryOptimizer third = QueryOptimizer.forQuery(query, model, cache);
+        third.optimize();
+        assertEquals(2, cache.getHits());
+        assertEquals(first.getFormattedStatistics(), third.getFormattedStatistics());
+    }
+
+    @Test
+    public void testHeuristicPlansAreNotShared() {
+        PlanCache cache = new PlanCache(1 << 20, 0);
+        QueryOptimizer heuristic = QueryOptimizer.forQuery(selectivities4, CostModel.DEFAULT, cache, 2);
+        heuristic.optimize();
+        assertEquals(0, cache.size());
+
+        QueryOptimizer exhaustive = QueryOptimizer.forQuery(selectivities4, CostModel.DEFAULT, cache);
+        exhaustive.optimize();
+        assertEquals(1, cache.size());
+        heuristic = QueryOptimizer.forQuery(selectivities4, CostModel.DEFAULT, cache, 2);
+        heuristic.optimize();
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testEviction() {
+        /* room for roughly two plans over 4 conditions */
+        PlanCache cache = new PlanCache(1200, 0);
+        for (int i = 0; i < 10; i++) {
+            Float[] s = new Float[]{0.1f * i, 0.2f, 0.2f, 0.2f};
+            cache.put(cache.keyOf(s, CostModel.DEFAULT), new QueryPlan(0x000F, s));
+            assertTrue(cache.getBytes() <= 1200);
+        }
+        assertEquals(10 - cache.size(), cache.getEvictions());
+
+        /* the most recently added plan is still there, the first one is not */
+        Float[] last = new Float[]{0.1f * 9, 0.2f, 0.2f, 0.2f};
+        assertNotNull(cache.get(cache.keyOf(last, CostModel.DEFAULT)));
+        Float[] first = new Float[]{0f, 0.2f, 0.2f, 0.2f};
+        assertNull(cache.get(cache.keyOf(first, CostModel.DEFAULT)));
+    }
+
+}
@@ -0,0 +1,111 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class PlanExecutorTest {
+    private static final int RECORDS = 20000;
+
+    @Test
+    public void testMatchesReference() {
+        Random random = new Random(7);
+        CostModel[] models = {CostModel.DEFAULT, new CostModel(1, 2, 1, 50, 2, 1), new CostModel(1, 2, 1, 1, 2, 8)};
+        for (int query = 0; query < 60; query++) {
+            Float[] selectivities = new Float[1 + random.nextInt(6)];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = random.nextFloat();
+            }
+            byte[][] tables = TestTables.createTables(selectivities, random);
+            int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+            int[] expected = TestTables.reference(tables, offsets);
+            for (CostModel model : models) {
+                QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+                o.optimize();
+                int[] answer = new PlanExecutor(o.getPlan()).execute(tables, offsets);
+                assertArrayEquals(o.getFormattedStatistics(), expected, answer);
+            }
+        }
+    }
+
+    @Test
+    public void testNoBranchTail() {
+        Float[] selectivities = new Float[]{0.5f, 0.2f, 0.8f, 0.2f, 0.4f};
+        QueryPlan plan = new QueryPlan(0x0015, selectivities);
+        plan.setChildren(new QueryPlan(0x0004, selectivities), new QueryPlan(0x0011, selectivities));
+        Random random = new Random(11);
+        byte[][] tables = TestTables.createTables(selectivities, random);
+        int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+
+        /* (f3) && (f1 & f5), with and without branching on the last term */
+        int[] branching = new PlanExecutor(plan).execute(tables, offsets);
+        plan.noBranchFlag = true;
+        int[] noBranch = new PlanExecutor(plan).execute(tables, offsets);
+        assertArrayEquals(branching, noBranch);
+        assertTrue(branching.length > 0);
+    }
+
+    @Test
+    public void testForPlanMatchesScalar() {
+        Random random = new Random(18);
+        CostModel[] models = {CostModel.DEFAULT, new CostModel(1, 2, 1, 50, 2, 1), new CostModel(1, 2, 1, 1, 2, 8)};
+        for (int query = 0; query < 40; query++) {
+            Float[] selectivities = new Float[1 + random.nextInt(8)];
+            for (int i = 0; i < selectivities.length; i++) {
+                selectivities[i] = random.nextFloat();
+            }
+            byte[][] tables = TestTables.createTables(selectivities, random);
+            int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+            for (CostModel model : models) {
+                QueryOptimizer o = QueryOptimizer.forQuery(selectivities, model, null);
+                o.optimize();
+                PlanExecutor scalar = new PlanExecutor(o.getPlan());
+                PlanExecutor fastest = PlanExecutor.forPlan(o.getPlan());
+                assertArrayEquals(o.getFormattedStatistics(), scalar.execute(tables, offsets),
+                        fastest.execute(tables, offsets));
+
+                /* a range that does not start or end on a block boundary */
+                int from = random.nextInt(100);
+                int to = RECORDS - random.nextInt(100);
+                int[] expected = new int[RECORDS];
+                int[] answer = new int[RECORDS];
+                int j = scalar.execute(tables, offsets, from, to, expected, 5);
+                assertEquals(j, fastest.execute(tables, offsets, from, to, answer, 5));
+                assertArrayEquals(Arrays.copyOfRange(expected, 5, j), Arrays.copyOfRange(answer, 5, j));
+            }
+        }
+    }
+
+    @Test
+    public void testReuseWithOtherTables() {
+        Random random = new Random(19);
+        Float[] selectivities = new Float[]{0.6f, 0.5f, 0.7f, 0.4f};
+        QueryOptimizer o = QueryOptimizer.forQuery(selectivities, new CostModel(1, 2, 1, 50, 2, 1), null);
+        o.optimize();
+        PlanExecutor fastest = PlanExecutor.forPlan(o.getPlan());
+        int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+        byte[][] tables = TestTables.createTables(selectivities, random);
+        assertArrayEquals(TestTables.reference(tables, offsets), fastest.execute(tables, offsets));
+        assertArrayEquals(TestTables.reference(tables, offsets), fastest.execute(tables, offsets));
+
+        /* the same outer array holding a new table, and a new set of tables */
+        tables[2] = TestTables.createTables(selectivities, random)[2];
+        assertArrayEquals(TestTables.reference(tables, offsets), fastest.execute(tables, offsets));
+        byte[][] other = TestTables.createTables(selectivities, random);
+        assertArrayEquals(TestTables.reference(other, offsets), fastest.execute(other, offsets));
+
+        /* a table updated in place */
+        for (int x = 0; x < other[1].length; x++) {
+            other[1][x] ^= 1;
+        }
+        assertArrayEquals(TestTables.reference(other, offsets), fastest.execute(other, offsets));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingCondition() {
+        Float[] selectivities = new Float[]{0.5f, 0.2f, 0.8f};
+        new PlanExecutor(new QueryPlan(0x0004, selectivities)).execute(new byte[2][TestTables.TABLE_SIZE], new int[2][10]);
+    }
+}
@@ -0,0 +1,131 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+
+public class PlanStoreTest {
+    private static final Float[] selectivities4 = new Float[]{0.5f, 0.2f, 0.2f, 0.2f};
+    private static final Float[] selectivities6 = new Float[]{0.7f, 0.4f, 0.2f, 0.9f, 0.95f, 0.6f};
+
+    @Test
+    public void testFormatRoundTrip() {
+        CostModel model = new CostModel(1, 2, 1, 50, 2, 1);
+        QueryOptimizer o = QueryOptimizer.forQuery(selectivities6, model, null);
+        o.optimize();
+        QueryPlan plan = o.getPlan();
+        ByteBuffer buffer = ByteBuffer.allocate(PlanFormat.encodedSize(plan));
+        PlanFormat.encode(plan, buffer);
+        assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        QueryPlan decoded = PlanFormat.decode(buffer, model);
+        assertEquals(plan.bitmask, decoded.bitmask);
+        assertEquals(plan.cost, decoded.cost, 0);
+        assertEquals(plan.getFormattedCode(), decoded.getFormattedCode());
+
+        /* a truncated plan is rejected */
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+        try {
+            PlanFormat.decode(buffer, model);
+            fail();
+        } catch (IllegalArgumentException exception) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testPlansSurviveReopening() throws IOException {
+        File file = File.createTempFile("plans", ".bin");
+        assertTrue(file.delete());
+        try {
+            PlanStore store = new PlanStore(file, 0);
+            PlanCache cache = new PlanCache(1 << 20, 0, store);
+            QueryOptimizer[] first = {QueryOptimizer.forQuery(selectivities4, CostModel.DEFAULT, cache),
+                QueryOptimizer.forQuery(selectivities6, CostModel.DEFAULT, cache)};
+            for (QueryOptimizer o : first) {
+                o.optimize();
+            }
+            assertEquals(2, store.size());
+            store.close();
+
+            store = new PlanStore(file, 0);
+            assertEquals(2, store.size());
+            cache = new PlanCache(1 << 20, 0, store);
+            for (int i = 0; i < first.length; i++) {
+                QueryOptimizer o = QueryOptimizer.forQuery(i == 0 ? selectivities4 : selectivities6,
+                        CostModel.DEFAULT, cache);
+                o.optimize();
+                assertEquals(0, o.getPairsConsidered());
+                assertEquals(first[i].getFormattedStatistics(), o.getFormattedStatistics());
+            }
+            assertEquals(2, cache.getStoreHits());
+            assertEquals(0, cache.getMisses());
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFullStoreKeepsOptimizing() throws IOException {
+        File file = File.createTempFile("plans", ".bin");
+        assertTrue(file.delete());
+        try {
+            /* room for the header and one small plan */
+            PlanStore store = new PlanStore(file, 0, 200);
+            PlanCache cache = new PlanCache(1 << 20, 0, store);
+            QueryOptimizer o = QueryOptimizer.forQuery(selectivities4, CostModel.DEFAULT, cache);
+            o.optimize();
+            assertEquals(1, store.size());
+            assertFalse(store.isFull());
+
+            o = QueryOptimizer.forQuery(selectivities6, CostModel.DEFAULT, cache);
+            o.optimize();
+            assertTrue(store.isFull());
+            assertEquals(1, store.size());
+
+            /* the plan that did not fit is still cached in memory */
+            QueryOptimizer again = QueryOptimizer.forQuery(selectivities6, CostModel.DEFAULT, cache);
+            again.optimize();
+            assertEquals(0, again.getPairsConsidered());
+            assertEquals(o.getFormattedStatistics(), again.getFormattedStatistics());
+            store.close();
+
+            store = new PlanStore(file, 0);
+            assertEquals(1, store.size());
+            store.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPrecisionMustMatch() throws IOException {
+        File file = File.createTempFile("plans", ".bin");
+        assertTrue(file.delete());
+        try {
+            new PlanStore(file, 0.05f).close();
+            try {
+                new PlanStore(file, 0);
+                fail();
+            } catch (IllegalArgumentException exception) {
+                /* expected */
+            }
+            PlanStore store = new PlanStore(file, 0.05f);
+            try {
+                new PlanCache(1 << 20, 0, store);
+                fail();
+            } catch (IllegalArgumentException exception) {
+                /* expected */
+            } finally {
+                store.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
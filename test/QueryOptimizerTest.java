@@ -0,0 +1,139 @@
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+
+public class QueryOptimizerTest {
+
+    @Test
+    public void testPruningStatistics() {
+        Random random = new Random(4);
+        Float[] selectivities = new Float[12];
+        for (int i = 0; i < selectivities.length; i++) {
+            selectivities[i] = Math.round(random.nextFloat() * 100) / 100f;
+        }
+        QueryOptimizer serial = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+        serial.optimize();
+        assertEquals(531441 - 2 * 4096 + 1, serial.getPairsConsidered());
+        assertTrue(serial.getPrunedByCMetric() > 0);
+        assertTrue(serial.getPrunedByCMetric() + serial.getPrunedByDMetric() < serial.getPairsConsidered());
+
+        /* the parallel search considers the same pairs */
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            QueryOptimizer parallel = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+            parallel.optimize(pool);
+            assertEquals(serial.getFormattedStatistics(), parallel.getFormattedStatistics());
+            assertEquals(serial.getPrunedByCMetric(), parallel.getPrunedByCMetric());
+            assertEquals(serial.getPrunedByDMetric(), parallel.getPrunedByDMetric());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testNoPairsForHeuristic() {
+        QueryOptimizer o = QueryOptimizer.forQuery(new Float[]{0.5f, 0.2f, 0.9f}, CostModel.DEFAULT, null, 0);
+        o.optimize();
+        assertEquals(0, o.getPairsConsidered());
+        assertEquals(0, o.getPrunedByCMetric());
+    }
+
+    @Test
+    public void testUpdateSelectivity() {
+        Random random = new Random(16);
+        Float[] selectivities = new Float[11];
+        for (int i = 0; i < selectivities.length; i++) {
+            selectivities[i] = Math.round(random.nextFloat() * 100) / 100f;
+        }
+        Float[] original = selectivities.clone();
+        QueryOptimizer incremental = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+        incremental.optimize();
+        Float[] updated = selectivities.clone();
+        for (int update = 0; update < 20; update++) {
+            int i = random.nextInt(updated.length);
+            updated[i] = Math.round(random.nextFloat() * 100) / 100f;
+            incremental.updateSelectivity(i, updated[i]);
+
+            /* same plan as optimizing from scratch */
+            QueryOptimizer full = QueryOptimizer.forQuery(updated.clone(), CostModel.DEFAULT, null);
+            full.optimize();
+            assertEquals(full.getFormattedStatistics(), incremental.getFormattedStatistics());
+            assertEquals(full.getPlan().cost, incremental.getPlan().cost, 0);
+            assertEquals(177147 - 2 * 2048 + 1 - (59049 - 2 * 1024 + 1), incremental.getPairsConsidered());
+        }
+        assertArrayEquals(original, selectivities);
+    }
+
+    @Test
+    public void testAddSelectivity() {
+        Random random = new Random(17);
+        Float[] selectivities = new Float[]{0.4f, 0.9f};
+        QueryOptimizer incremental = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+        incremental.optimize();
+        for (int k = 3; k <= 11; k++) {
+            float p = Math.round(random.nextFloat() * 100) / 100f;
+            assertEquals(k - 1, incremental.addSelectivity(p));
+            selectivities = Arrays.copyOf(selectivities, k);
+            selectivities[k - 1] = p;
+
+            /* same plan as optimizing from scratch */
+            QueryOptimizer full = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+            full.optimize();
+            assertEquals(full.getFormattedStatistics(), incremental.getFormattedStatistics());
+            assertEquals(full.getPlan().cost, incremental.getPlan().cost, 0);
+        }
+
+        /* past the exhaustive limit, the heuristic takes over */
+        QueryOptimizer limited = QueryOptimizer.forQuery(new Float[]{0.5f, 0.2f}, CostModel.DEFAULT, null, 2);
+        limited.optimize();
+        limited.addSelectivity(0.7f);
+        assertEquals(0, limited.getPairsConsidered());
+        assertEquals(7, limited.getPlan().bitmask);
+    }
+
+    @Test
+    public void testMetrics() throws JMException {
+        Float[] selectivities = new Float[]{0.3f, 0.8f, 0.55f, 0.1f, 0.9f, 0.4f, 0.75f, 0.2f};
+        QueryOptimizer off = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+        off.optimize();
+        assertTrue(off.getPlanReplacements() > 0);
+        assertEquals(0, off.getSetupNanos());
+
+        OptimizerMetrics metrics = OptimizerMetrics.INSTANCE;
+        metrics.setEnabled(true);
+        metrics.reset();
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(OptimizerMetrics.OBJECT_NAME)));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            QueryOptimizer serial = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+            serial.optimize();
+            assertTrue(serial.getSearchNanos() > 0);
+            assertEquals(serial.getPairsConsidered() - serial.getPrunedByCMetric() - serial.getPrunedByDMetric(),
+                    serial.getCostEvaluations());
+
+            /* the parallel search replaces plans just as often */
+            QueryOptimizer parallel = QueryOptimizer.forQuery(selectivities, CostModel.DEFAULT, null);
+            parallel.optimize(pool);
+            assertEquals(serial.getPlanReplacements(), parallel.getPlanReplacements());
+
+            assertEquals(2, metrics.getOptimizations());
+            assertEquals(2, metrics.getExhaustiveSearches());
+            assertEquals(2 * serial.getPairsConsidered(), metrics.getPairsConsidered());
+            assertEquals(2 * serial.getPlanReplacements(), metrics.getPlanReplacements());
+            assertEquals(2 * serial.getCostEvaluations(), metrics.getCostEvaluations());
+            assertTrue(metrics.getSearchNanos() > 0);
+        } finally {
+            pool.shutdown();
+            metrics.setEnabled(false);
+        }
+    }
+}
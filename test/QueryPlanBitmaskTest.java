@@ -66,4 +66,16 @@ public class QueryPlanBitmaskTest {
         assertTrue(p.getAtoms().equals(expected));
     }
 
+    @Test
+    public void testLeftMostTermAfterChildGetsChildren() {
+        /* the left child is only split after the parent was built */
+        QueryPlan root = new QueryPlan(0x0015, selectivities5);
+        QueryPlan left = new QueryPlan(0x0005, selectivities5);
+        root.setChildren(left, new QueryPlan(0x0010, selectivities5));
+        assertSame(left, root.getLeftMostTerm());
+        QueryPlan first = new QueryPlan(0x0004, selectivities5);
+        left.setChildren(first, new QueryPlan(0x0001, selectivities5));
+        assertSame(first, root.getLeftMostTerm());
+    }
+
 }
@@ -50,4 +50,22 @@ public class QueryPlanOutputTest {
 
     }
 
+    @Test
+    public void testAppendStatistics() throws Exception {
+        P10101.setChildren(P00100, P10001);
+        P10101.cost = 12.5f;
+        assertAppendMatchesFormat(P10101);
+
+        P10101.noBranchFlag = true;
+        assertAppendMatchesFormat(P10101);
+        assertAppendMatchesFormat(P00100);
+    }
+
+    private static void assertAppendMatchesFormat(QueryPlan plan) throws Exception {
+        StringBuilder out = new StringBuilder();
+        QueryOptimizerUtils.appendStatistics(out, selectivities5, plan);
+        assertEquals(QueryOptimizerUtils.formatStatistics(selectivities5, plan.getFormattedCode(), plan.cost),
+                out.toString());
+    }
+
 }
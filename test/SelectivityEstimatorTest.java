@@ -0,0 +1,65 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+public class SelectivityEstimatorTest {
+    private static final int RECORDS = 100000;
+    private static final Float[] selectivities = new Float[]{0.1f, 0.5f, 0.9f};
+
+    @Test
+    public void testHistogramsAreExact() {
+        Random random = new Random(1);
+        byte[][] tables = TestTables.createTables(selectivities, random);
+        int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+
+        SelectivityEstimator estimator = new SelectivityEstimator(tables);
+        estimator.append(offsets, 0, RECORDS / 3);
+        estimator.append(offsets, RECORDS / 3, RECORDS);
+        assertEquals(RECORDS, estimator.getRecords());
+        Float[] estimates = estimator.estimate();
+        for (int n = 0; n < tables.length; n++) {
+            int passed = 0;
+            for (int i = 0; i < RECORDS; i++) {
+                passed += tables[n][offsets[n][i]];
+            }
+            assertEquals((float) passed / RECORDS, estimates[n], 1e-6f);
+        }
+        assertEquals(estimates[2], estimator.estimate(2)[0]);
+    }
+
+    @Test
+    public void testSample() {
+        Random random = new Random(2);
+        byte[][] tables = TestTables.createTables(selectivities, random);
+        int[][] offsets = TestTables.createOffsets(selectivities.length, RECORDS, random);
+
+        Float[] estimates = SelectivityEstimator.sample(tables, offsets, 20000, random);
+        for (int n = 0; n < tables.length; n++) {
+            assertEquals(selectivities[n], estimates[n], 0.02f);
+        }
+
+        /* the estimates can be optimized directly */
+        QueryOptimizer[] o = QueryOptimizer.fromList(Arrays.asList(estimates, estimates), CostModel.DEFAULT);
+        o[0].optimize();
+        assertEquals(7L, o[0].getPlan().bitmask);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoRecords() {
+        new SelectivityEstimator(new byte[2][TestTables.TABLE_SIZE]).estimate();
+    }
+
+    @Test
+    public void testSampleNoRecords() {
+        try {
+            SelectivityEstimator.sample(new byte[2][TestTables.TABLE_SIZE], new int[2][0], 100, new Random(2));
+            fail();
+        } catch (IllegalArgumentException exception) {
+            assertEquals("no records to sample selectivities from", exception.getMessage());
+        }
+    }
+}
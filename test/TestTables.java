@@ -0,0 +1,63 @@
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Random predicate tables and offset arrays (see PlanExecutor) for the executor tests,
+ * and the answer they should give, evaluated one condition at a time.
+ */
+final class TestTables {
+    /** entries of each predicate table */
+    static final int TABLE_SIZE = 3000;
+
+    private TestTables() {
+    }
+
+    /**
+     * @param selectivities probability that each entry of t_n is 1
+     * @return a predicate table t_n for each selection condition f_n
+     */
+    static byte[][] createTables(Float[] selectivities, Random random) {
+        byte[][] tables = new byte[selectivities.length][TABLE_SIZE];
+        for (int n = 0; n < tables.length; n++) {
+            for (int x = 0; x < TABLE_SIZE; x++) {
+                tables[n][x] = (byte) (random.nextFloat() < selectivities[n] ? 1 : 0);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @param k number of selection conditions
+     * @param records number of records
+     * @return an offset array o_n for each selection condition, with uniform offsets
+     */
+    static int[][] createOffsets(int k, int records, Random random) {
+        int[][] offsets = new int[k][records];
+        for (int n = 0; n < k; n++) {
+            for (int i = 0; i < records; i++) {
+                offsets[n][i] = random.nextInt(TABLE_SIZE);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * @return indices of the records that satisfy every condition, evaluated one condition
+     * at a time
+     */
+    static int[] reference(byte[][] tables, int[][] offsets) {
+        int[] answer = new int[offsets[0].length];
+        int j = 0;
+        for (int i = 0; i < offsets[0].length; i++) {
+            boolean pass = true;
+            for (int n = 0; n < tables.length; n++) {
+                pass = pass && tables[n][offsets[n][i]] != 0;
+            }
+            if (pass) {
+                answer[j++] = i;
+            }
+        }
+        return Arrays.copyOf(answer, j);
+    }
+}